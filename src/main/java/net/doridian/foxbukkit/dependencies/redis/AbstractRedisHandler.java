@@ -17,60 +17,185 @@
  */
 package net.doridian.foxbukkit.dependencies.redis;
 
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.args.ListDirection;
+import redis.clients.jedis.resps.StreamEntry;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * Receives messages from a pub/sub channel, list or stream and hands them to {@link #onMessage(String)}
+ * through per-handler dispatch queues (see {@link RedisHandlerOptions}).
+ * When a queue is full, list and stream handlers stop popping until there is room again. Pub/sub
+ * handlers cannot wait without stalling every other subscription, so by default they drop the oldest
+ * queued message instead, log a rate-limited warning and call {@link #onMessagesDropped()}.
+ */
 public abstract class AbstractRedisHandler extends AbstractJedisPubSub {
     private final ArrayList<Thread> threads = new ArrayList<>();
     private final RedisManager redisManager;
+    private final RedisMessageDispatcher dispatcher;
+    private final RedisMessageDispatcher.OverflowPolicy popOverflowPolicy;
+    private final RedisMessageDispatcher.OverflowPolicy pubSubOverflowPolicy;
+    private final RedisHandlerType type;
+    private final String channelName;
+    private final RedisHandlerOptions options;
+    private final String consumerId;
+    private boolean started = false;
+    // Stream entries queued or being handled, which claiming must not hand out a second time
+    private final Set<StreamEntryID> inFlight = ConcurrentHashMap.newKeySet();
+
+    private static final String MOVE_SCRIPT =
+            "local moved = {} " +
+            "for i = 1, tonumber(ARGV[1]) do " +
+            "local message = redis.call('LMOVE', KEYS[1], KEYS[2], 'RIGHT', 'LEFT') " +
+            "if not message then break end " +
+            "moved[i] = message " +
+            "end " +
+            "return moved";
+
+    // Newest in-flight message first, so the oldest one ends up at the head of the queue again
+    private static final String RECOVER_SCRIPT =
+            "local count = 0 " +
+            "while redis.call('LMOVE', KEYS[1], KEYS[2], 'LEFT', 'RIGHT') do " +
+            "count = count + 1 " +
+            "end " +
+            "return count";
+
+    private static final int STREAM_BLOCK_MILLIS = 5000;
+    private static final StreamEntryID CLAIM_START = new StreamEntryID(0, 0);
 
     public enum RedisHandlerType {
-        LIST, PUBSUB, BOTH
+        LIST, PUBSUB, BOTH, STREAM
     }
 
+    /**
+     * Creates a pub/sub handler and starts it right away, see {@link #AbstractRedisHandler(RedisManager, RedisHandlerType, String)}
+     */
     protected AbstractRedisHandler(final RedisManager redisManager, final String channelName) {
         this(redisManager, RedisHandlerType.PUBSUB, channelName);
     }
 
+    /**
+     * Creates a handler and starts it right away. Messages may then reach {@link #onMessage(String)}
+     * before the constructor of the subclass has finished, so subclasses reading their own fields
+     * there should use {@link #AbstractRedisHandler(RedisManager, RedisHandlerType, String, RedisHandlerOptions)}
+     * and call {@link #start()} once they are set up.
+     */
 	protected AbstractRedisHandler(final RedisManager redisManager, final RedisHandlerType type, final String channelName) {
+        this(redisManager, type, channelName, new RedisHandlerOptions());
+        start();
+    }
+
+    /**
+     * Creates a handler which only receives messages once {@link #start()} is called
+     */
+    protected AbstractRedisHandler(final RedisManager redisManager, final RedisHandlerType type, final String channelName, final RedisHandlerOptions options) {
         this.redisManager = redisManager;
+        this.type = type;
+        this.channelName = channelName;
+        this.options = options;
+        this.dispatcher = new RedisMessageDispatcher(redisManager, channelName, options, new Runnable() {
+            @Override
+            public void run() {
+                // Dropped entries stay pending and may be claimed again
+                inFlight.clear();
+                onMessagesDropped();
+            }
+        });
+        this.popOverflowPolicy = options.overflowPolicy != null ? options.overflowPolicy : RedisMessageDispatcher.OverflowPolicy.BLOCK;
+        // Blocking here would stall the connection every subscription shares
+        this.pubSubOverflowPolicy = options.overflowPolicy != null ? options.overflowPolicy : RedisMessageDispatcher.OverflowPolicy.DROP_OLDEST;
+        this.consumerId = options.consumerId != null ? options.consumerId : redisManager.consumerId;
+        // A random id would name a new processing list on every start, so nothing left in flight would ever be recovered
+        if(options.reliable && consumerId == null && (type == RedisHandlerType.BOTH || type == RedisHandlerType.LIST)) {
+            throw new IllegalArgumentException("Reliable queue " + channelName + " needs a consumer id (set redis-consumer-id or RedisHandlerOptions.setConsumerId)");
+        }
+    }
+
+    /**
+     * Subscribes to the channel and starts the threads popping from it. Does nothing if already started.
+     */
+    public final synchronized void start() {
+        if(started)
+            return;
+        started = true;
         if(type == RedisHandlerType.BOTH || type == RedisHandlerType.PUBSUB) {
-            Thread t = redisManager.threadCreator.createThread(new Runnable() {
+            redisManager.getPubSubHub().subscribe(channelName, this);
+        }
+        if(type == RedisHandlerType.BOTH || type == RedisHandlerType.LIST) {
+            final String processingList = options.reliable ? channelName + ":processing:" + consumerId : null;
+            Thread t = redisManager.blockingThreadCreator.createThread(new Runnable() {
                 public void run() {
+                    boolean recovered = false;
+                    int failures = 0;
                     while (redisManager.running) {
                         try {
-                            Thread.sleep(1000);
-                            redisManager.subscribe(channelName, AbstractRedisHandler.this);
+                            if(processingList != null && !recovered) {
+                                // Put back whatever a previous run of this consumer left in flight
+                                redisManager.eval(RECOVER_SCRIPT, Arrays.asList(processingList, channelName), Collections.<String>emptyList());
+                                recovered = true;
+                            }
+                            final List<String> batch = processingList != null ?
+                                    popReliable(channelName, processingList, options.batchSize) : pop(channelName, options.batchSize);
+                            if(batch != null)
+                                dispatchBatch(batch, Function.identity(), processingList != null ? messages -> acknowledge(processingList, messages) : null, null);
+                            failures = 0;
                         } catch (RedisManager.PoolClosedException e) {
                             return;
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            redisManager.retryPolicy.report(e);
+                            if(!redisManager.retryPolicy.pause(++failures))
+                                return;
                         }
                     }
                 }
             });
-            t.setName("RedisHandlerThread-subscribe-" + channelName);
+            t.setName("RedisHandlerThread-list-" + channelName);
             t.setDaemon(true);
             t.start();
             redisManager.addThread(t);
         }
-        if(type == RedisHandlerType.BOTH || type == RedisHandlerType.LIST) {
-            Thread t = redisManager.threadCreator.createThread(new Runnable() {
+        if(type == RedisHandlerType.STREAM) {
+            // Entries pending for a consumer that never comes back are claimed by the rest of the group
+            final String consumer = consumerId != null ? consumerId : redisManager.nodeId;
+            Thread t = redisManager.blockingThreadCreator.createThread(new Runnable() {
                 public void run() {
+                    boolean created = false;
+                    long nextClaim = 0L;
+                    int failures = 0;
                     while (redisManager.running) {
                         try {
-                            List<String> ret = redisManager.brpop(0, channelName);
-                            if(ret != null)
-                                onMessage(ret.get(0), ret.get(1));
+                            if(!created) {
+                                redisManager.xgroupCreate(channelName, options.groupName);
+                                created = true;
+                            }
+                            if(System.currentTimeMillis() >= nextClaim) {
+                                claimPending(channelName, consumer, options);
+                                nextClaim = System.currentTimeMillis() + options.claimIdleTime;
+                            }
+                            dispatchEntries(channelName, options.groupName,
+                                    redisManager.xreadGroup(channelName, options.groupName, consumer, options.batchSize, STREAM_BLOCK_MILLIS));
+                            failures = 0;
                         } catch (RedisManager.PoolClosedException e) {
                             return;
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            redisManager.retryPolicy.report(e);
+                            if(!redisManager.retryPolicy.pause(++failures))
+                                return;
                         }
                     }
                 }
             });
-            t.setName("RedisHandlerThread-list-" + channelName);
+            t.setName("RedisHandlerThread-stream-" + channelName);
             t.setDaemon(true);
             t.start();
             redisManager.addThread(t);
@@ -79,12 +204,186 @@ public abstract class AbstractRedisHandler extends AbstractJedisPubSub {
 
     protected abstract void onMessage(final String message) throws Exception;
 
+    /**
+     * Gets the ordering key of a message. Messages with equal keys are handled one
+     * at a time in the order they were received, others may be handled in parallel.
+     * @param message Message received
+     * @return Ordering key (null if the message may be handled in any order)
+     */
+    protected String getMessageKey(final String message) {
+        return null;
+    }
+
+    /**
+     * Called on the receiving thread whenever a message had to be discarded because the
+     * dispatch queue was full. Unless configured otherwise, this happens to pub/sub messages
+     * once {@link RedisHandlerOptions#setQueueCapacity(int) queueCapacity} (1024) messages
+     * are waiting: the oldest one is dropped and a rate-limited warning logged.
+     * Handlers that derive state from the messages should resync it.
+     */
+    protected void onMessagesDropped() {
+
+    }
+
+    /**
+     * Handles a batch of list elements, in the order they were popped.
+     * Handlers may override this to process a backlog in bulk. In a reliable queue,
+     * the whole batch stays in the processing list if this throws and is only handled
+     * again once a handler with the same consumer id starts.
+     * @param messages Messages received
+     */
+    protected void onMessages(final List<String> messages) throws Exception {
+        Exception failure = null;
+        for(String message : messages) {
+            try {
+                onMessage(message);
+            } catch (Exception e) {
+                if(failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if(failure != null)
+            throw failure;
+    }
+
+    private List<String> pop(final String channelName, final int batchSize) {
+        final List<String> ret = redisManager.brpop(0, channelName);
+        if(ret == null)
+            return null;
+        final List<String> batch = new ArrayList<>();
+        batch.add(ret.get(1));
+        if(batchSize > 1) {
+            // Drain whatever else is already queued in the same round trip
+            final List<String> more = redisManager.rpop(channelName, batchSize - 1);
+            if(more != null)
+                batch.addAll(more);
+        }
+        return batch;
+    }
+
+    private List<String> popReliable(final String channelName, final String processingList, final int batchSize) {
+        final String message = redisManager.blmove(channelName, processingList, ListDirection.RIGHT, ListDirection.LEFT, 0);
+        if(message == null)
+            return null;
+        final List<String> batch = new ArrayList<>();
+        batch.add(message);
+        if(batchSize > 1) {
+            final List<?> more = (List<?>)redisManager.eval(MOVE_SCRIPT, Arrays.asList(channelName, processingList),
+                    Collections.singletonList(Integer.toString(batchSize - 1)));
+            for(Object moved : more)
+                batch.add((String)moved);
+        }
+        return batch;
+    }
+
+    /**
+     * Hands stream entries to the dispatcher, acknowledging entries without a message right away.
+     * Entries this handler already has in flight are skipped, as claiming also returns those once idle long enough.
+     */
+    private void dispatchEntries(final String channelName, final String group, final List<StreamEntry> entries) {
+        final List<StreamEntry> batch = new ArrayList<>();
+        final List<StreamEntry> invalid = new ArrayList<>();
+        for(StreamEntry entry : entries) {
+            // Entries deleted while pending are claimed without fields
+            if(entry.getFields() == null || !entry.getFields().containsKey(RedisManager.STREAM_MESSAGE_FIELD))
+                invalid.add(entry);
+            else if(inFlight.add(entry.getID()))
+                batch.add(entry);
+        }
+        if(!invalid.isEmpty())
+            acknowledge(channelName, group, invalid);
+        if(!batch.isEmpty())
+            dispatchBatch(batch, entry -> entry.getFields().get(RedisManager.STREAM_MESSAGE_FIELD),
+                    handled -> acknowledge(channelName, group, handled),
+                    done -> {
+                        for(StreamEntry entry : done)
+                            inFlight.remove(entry.getID());
+                    });
+    }
+
+    /**
+     * Takes over entries of the group that have been pending for too long, e.g. because their consumer died
+     */
+    private void claimPending(final String channelName, final String consumer, final RedisHandlerOptions options) {
+        StreamEntryID cursor = CLAIM_START;
+        do {
+            final Map.Entry<StreamEntryID, List<StreamEntry>> claimed =
+                    redisManager.xautoclaim(channelName, options.groupName, consumer, options.claimIdleTime, cursor, options.batchSize);
+            dispatchEntries(channelName, options.groupName, claimed.getValue());
+            cursor = claimed.getKey();
+        } while(!CLAIM_START.equals(cursor) && redisManager.running);
+    }
+
+    /**
+     * Splits a batch by dispatch lane, keeping messages of the same key in order
+     * @param toMessage Gets the message of a batch item
+     * @param acknowledge Called with the items once handled successfully (null if not needed)
+     * @param release Called with the items once handled, successfully or not (null if not needed)
+     */
+    private <T> void dispatchBatch(final List<T> batch, final Function<T, String> toMessage, final Consumer<List<T>> acknowledge, final Consumer<List<T>> release) {
+        final Map<Integer, List<T>> lanes = new LinkedHashMap<>();
+        for(T item : batch)
+            lanes.computeIfAbsent(dispatcher.getLane(getMessageKey(toMessage.apply(item))), k -> new ArrayList<>()).add(item);
+        for(Map.Entry<Integer, List<T>> lane : lanes.entrySet()) {
+            final List<T> items = lane.getValue();
+            dispatcher.dispatchToLane(lane.getKey(), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final List<String> messages = new ArrayList<>(items.size());
+                        for(T item : items)
+                            messages.add(toMessage.apply(item));
+                        try {
+                            onMessages(messages);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            return;
+                        }
+                        if(acknowledge != null)
+                            acknowledge.accept(items);
+                    } finally {
+                        if(release != null)
+                            release.accept(items);
+                    }
+                }
+            }, popOverflowPolicy);
+        }
+    }
+
+    /**
+     * Removes handled messages from the processing list in a single round trip
+     */
+    private void acknowledge(final String processingList, final List<String> messages) {
+        redisManager.pipeline(batch -> {
+            for(String message : messages)
+                batch.lrem(processingList, -1, message);
+        });
+    }
+
+    private void acknowledge(final String channelName, final String group, final List<StreamEntry> entries) {
+        final StreamEntryID[] ids = new StreamEntryID[entries.size()];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = entries.get(i).getID();
+        redisManager.xack(channelName, group, ids);
+    }
+
+    public RedisMessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
 	@Override
 	public final void onMessage(final String channel, final String c_message) {
-		try {
-            onMessage(c_message);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+        dispatcher.dispatch(getMessageKey(c_message), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onMessage(c_message);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, pubSubOverflowPolicy);
 	}
 }
@@ -0,0 +1,204 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Non-blocking counterpart of the {@link RedisManager} commands.
+ * Commands run on a bounded pool of worker threads, are retried a bounded
+ * number of times and time out instead of retrying forever.
+ */
+public class AsyncRedisManager {
+    private final RedisManager redisManager;
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+    private final int maxAttempts;
+
+    AsyncRedisManager(final RedisManager redisManager, int threads, int queueSize, long timeout, int maxAttempts) {
+        this.redisManager = redisManager;
+        this.timeout = timeout;
+        this.maxAttempts = maxAttempts;
+
+        final AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), runnable -> {
+            Thread t = redisManager.threadCreator.createThread(runnable);
+            t.setName("RedisAsyncThread-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    void execute(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    <T> CompletableFuture<T> submit(final Function<Jedis, T> command) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> run(command, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> void run(final Function<Jedis, T> command, final CompletableFuture<T> future) {
+        try {
+            final RetryPolicy.Attempt retry = redisManager.retryPolicy.begin();
+            for(int attempt = 1; !future.isDone(); attempt++) {
+                if(!redisManager.running) {
+                    future.completeExceptionally(new RedisManager.PoolClosedException());
+                    return;
+                }
+                try {
+                    final T ret = redisManager.attempt(command);
+                    retry.succeeded();
+                    future.complete(ret);
+                    return;
+                } catch (Exception e) {
+                    if(attempt >= maxAttempts) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    retry.failed(e);
+                }
+            }
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    public CompletableFuture<RedisBatch> pipeline(Consumer<RedisBatch> filler) {
+        final RedisBatch batch = new RedisBatch();
+        filler.accept(batch);
+        return submit(jedis -> {
+            batch.execute(jedis);
+            return batch;
+        });
+    }
+
+    public CompletableFuture<Long> hlen(String key) {
+        return submit(jedis -> jedis.hlen(key));
+    }
+
+    public CompletableFuture<Long> incrBy(String key, long amount) {
+        return submit(jedis -> jedis.incrBy(key, amount));
+    }
+
+    public CompletableFuture<String> get(String key) {
+        return submit(jedis -> jedis.get(key));
+    }
+
+    public CompletableFuture<String> set(String key, String value) {
+        return submit(jedis -> jedis.set(key, value));
+    }
+
+    public CompletableFuture<String> setex(String key, int expiry, String value) {
+        return submit(jedis -> jedis.setex(key, expiry, value));
+    }
+
+    public CompletableFuture<Long> del(String key) {
+        return submit(jedis -> jedis.del(key));
+    }
+
+    public CompletableFuture<List<String>> lrange(String key, long start, long stop) {
+        return submit(jedis -> jedis.lrange(key, start, stop));
+    }
+
+    public CompletableFuture<List<String>> zrange(String key, long start, long end) {
+        return submit(jedis -> jedis.zrange(key, start, end));
+    }
+
+    public CompletableFuture<Long> zadd(String key, double score, String value) {
+        return submit(jedis -> jedis.zadd(key, score, value));
+    }
+
+    public CompletableFuture<Long> zrem(String key, String... value) {
+        return submit(jedis -> jedis.zrem(key, value));
+    }
+
+    public CompletableFuture<Set<String>> smembers(String key) {
+        return submit(jedis -> jedis.smembers(key));
+    }
+
+    public CompletableFuture<Long> sadd(String key, String... value) {
+        return submit(jedis -> jedis.sadd(key, value));
+    }
+
+    public CompletableFuture<Long> srem(String key, String... value) {
+        return submit(jedis -> jedis.srem(key, value));
+    }
+
+    public CompletableFuture<Boolean> hexists(String key, String index) {
+        return submit(jedis -> jedis.hexists(key, index));
+    }
+
+    public CompletableFuture<String> hget(String key, String index) {
+        return submit(jedis -> jedis.hget(key, index));
+    }
+
+    public CompletableFuture<List<String>> hmget(String key, String... indices) {
+        return submit(jedis -> jedis.hmget(key, indices));
+    }
+
+    public CompletableFuture<Long> hset(String key, String index, String value) {
+        return submit(jedis -> jedis.hset(key, index, value));
+    }
+
+    public CompletableFuture<Long> hdel(String key, String index) {
+        return submit(jedis -> jedis.hdel(key, index));
+    }
+
+    public CompletableFuture<Set<String>> hkeys(String key) {
+        return submit(jedis -> jedis.hkeys(key));
+    }
+
+    public CompletableFuture<List<String>> hvals(String key) {
+        return submit(jedis -> jedis.hvals(key));
+    }
+
+    public CompletableFuture<Map<String, String>> hgetAll(String key) {
+        return submit(jedis -> jedis.hgetAll(key));
+    }
+
+    public CompletableFuture<Long> publish(String key, String value) {
+        return submit(jedis -> jedis.publish(key, value));
+    }
+
+    public CompletableFuture<Long> lpush(String key, String... strings) {
+        return submit(jedis -> jedis.lpush(key, strings));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed timing wheel expiring entries of all {@link CacheMap}s of a {@link RedisManager}.
+ * Each tick only the timeouts of one slot are looked at. Timeouts are removed again as soon as
+ * their entry is replaced or dropped, and only hold their entry weakly, so entries gone from
+ * their cache never stay reachable through the wheel.
+ */
+class CacheExpiryScheduler {
+    private static final long TICK_MILLIS = 250L;
+    private static final int WHEEL_SIZE = 1024;
+
+    private final List<Set<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private volatile long nextTick;
+
+    abstract static class Expiring {
+        final long expiry;
+        private volatile Timeout timeout = null;
+
+        Expiring(long expiry) {
+            this.expiry = expiry;
+        }
+
+        /**
+         * Called on the scheduler thread once the deadline has passed
+         */
+        abstract void expire();
+    }
+
+    private static final class Timeout {
+        private final WeakReference<Expiring> expiring;
+        private final long expiry;
+        private final Set<Timeout> slot;
+
+        private Timeout(Expiring expiring, Set<Timeout> slot) {
+            this.expiring = new WeakReference<>(expiring);
+            this.expiry = expiring.expiry;
+            this.slot = slot;
+        }
+    }
+
+    CacheExpiryScheduler(final RedisManager redisManager) {
+        for(int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(ConcurrentHashMap.newKeySet());
+        nextTick = System.currentTimeMillis() / TICK_MILLIS;
+
+        Thread t = redisManager.blockingThreadCreator.createThread(new Runnable() {
+            @Override
+            public void run() {
+                while(redisManager.running) {
+                    try {
+                        Thread.sleep(TICK_MILLIS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    final long now = System.currentTimeMillis();
+                    // Catch up on every slot passed since the last tick
+                    for(int i = 0; nextTick <= now / TICK_MILLIS && i < WHEEL_SIZE; i++, nextTick++)
+                        expireSlot(wheel.get((int)(nextTick % WHEEL_SIZE)), now);
+                    nextTick = Math.max(nextTick, now / TICK_MILLIS + 1);
+                }
+                for(Set<Timeout> slot : wheel)
+                    slot.clear();
+            }
+        });
+        t.setName("RedisCacheExpiryThread");
+        t.setDaemon(true);
+        t.start();
+        redisManager.addThread(t);
+    }
+
+    private static void expireSlot(Set<Timeout> slot, long now) {
+        final Iterator<Timeout> iterator = slot.iterator();
+        while(iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            final Expiring expiring = timeout.expiring.get();
+            if(expiring == null) {
+                iterator.remove();
+                continue;
+            }
+            // Deadlines more than one revolution away stay for a later pass
+            if(timeout.expiry > now)
+                continue;
+            iterator.remove();
+            try {
+                expiring.expire();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void schedule(Expiring expiring) {
+        // Deadlines already passed go into the next slot due instead of waiting a whole revolution
+        final long tick = Math.max(expiring.expiry / TICK_MILLIS, nextTick);
+        final Set<Timeout> slot = wheel.get((int)(tick % WHEEL_SIZE));
+        final Timeout timeout = new Timeout(expiring, slot);
+        expiring.timeout = timeout;
+        slot.add(timeout);
+    }
+
+    /**
+     * Removes the entry from the wheel, e.g. because it was replaced or evicted
+     */
+    void cancel(Expiring expiring) {
+        final Timeout timeout = expiring.timeout;
+        if(timeout == null)
+            return;
+        expiring.timeout = null;
+        timeout.slot.remove(timeout);
+    }
+}
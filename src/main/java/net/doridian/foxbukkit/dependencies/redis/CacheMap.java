@@ -18,14 +18,43 @@
 package net.doridian.foxbukkit.dependencies.redis;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class CacheMap implements Map<String, String> {
+    private static final int MAX_FREQUENCY = 3;
+    private static final long REPLICATED_TOMBSTONE_LIFETIME = 60000L;
+    private static final long INITIAL_SUBSCRIBE_TIMEOUT = 5000L;
+
     private final long expiryTime;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final boolean replicated;
+    private volatile long invalidationEpoch = 0L;
+    private volatile int invalidateThreshold = -1;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong entryStamps = new AtomicLong();
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private volatile long negativeExpiryTime;
+    private volatile double refreshAheadFactor = 0D;
     private final String name;
+    // Tells this cache's own messages apart from those of other caches on the same hash, even in this process
+    private final String originId;
+    private static final AtomicLong originCounter = new AtomicLong();
 
     private final RedisManager redisManager;
 
     private final JedisPubSubListener jedisPubSubListener;
+    private final CacheExpiryScheduler expiryScheduler;
 
     private final Object onChangeLock = new Object();
     private Set<OnChangeHook> onChangeHooks = null;
@@ -49,6 +78,46 @@ public class CacheMap implements Map<String, String> {
         return this;
     }
 
+    /**
+     * Sets how long keys missing from the parent map are remembered as missing
+     * @param negativeExpiryTime Time in milliseconds (0 to not cache missing keys at all)
+     * @return This cache
+     */
+    public CacheMap setNegativeExpiryTime(long negativeExpiryTime) {
+        this.negativeExpiryTime = negativeExpiryTime;
+        return this;
+    }
+
+    /**
+     * Enables reloading entries in the background once they are read after the given
+     * fraction of their lifetime has passed. The old value is served until the reload finishes.
+     * @param refreshAheadFactor Fraction of the expiry time (0 to disable)
+     * @return This cache
+     */
+    public CacheMap setRefreshAheadFactor(double refreshAheadFactor) {
+        if(refreshAheadFactor < 0D || refreshAheadFactor >= 1D)
+            throw new IllegalArgumentException("refreshAheadFactor must be in [0, 1)");
+        this.refreshAheadFactor = refreshAheadFactor;
+        return this;
+    }
+
+    /**
+     * Makes changes to values longer than the threshold be broadcast as invalidations only,
+     * so other nodes reload the value on demand instead of receiving it with every change
+     * @param invalidateThreshold Maximum value length sent in change messages (-1 to always send values)
+     * @return This cache
+     */
+    public CacheMap setInvalidateThreshold(int invalidateThreshold) {
+        this.invalidateThreshold = invalidateThreshold;
+        return this;
+    }
+
+    private boolean hasOnChangeHooks() {
+        synchronized (onChangeLock) {
+            return onChangeHooks != null;
+        }
+    }
+
     public CacheMap removeOnChangeHook(OnChangeHook hook) {
         synchronized (onChangeLock) {
             onChangeHooks.remove(hook);
@@ -61,110 +130,456 @@ public class CacheMap implements Map<String, String> {
 
     private class JedisPubSubListener extends AbstractRedisHandler {
         private JedisPubSubListener(String channelName) {
-            super(redisManager, channelName);
+            super(redisManager, RedisHandlerType.PUBSUB, channelName, new RedisHandlerOptions());
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if(!replicated)
+                return;
+            // The constructor loads the hash once the first subscription is confirmed
+            if(subscribed.getCount() > 0L) {
+                subscribed.countDown();
+                return;
+            }
+            // Changes published while we were not subscribed are lost, so pull the whole hash again.
+            // Not on this thread though, it delivers the messages of every channel.
+            scheduleResync();
+        }
+
+        @Override
+        protected void onMessagesDropped() {
+            if(replicated)
+                scheduleResync();
+            else
+                invalidateAll();
         }
 
         @Override
         public void onMessage(final String c_message) {
-            final String[] msgSplit = c_message.split("\0");
-            synchronized (internalMap) {
-                switch (msgSplit.length) {
-                    case 1:
-                        if(msgSplit[0].charAt(0) == '\1') {
-                            internalMap.clear();
-                        } else {
-                            internalMap.remove(msgSplit[0]);
-                            publishChange(msgSplit[0], null);
-                        }
+            if(!CacheMapMessage.isVersioned(c_message)) {
+                onLegacyMessage(c_message);
+                return;
+            }
+            final CacheMapMessage.Reader message = new CacheMapMessage.Reader(c_message);
+            // Our own changes were already applied locally when they were made
+            if(message.origin.equals(originId))
+                return;
+            sequence.accumulateAndGet(message.sequence, Math::max);
+            while(message.next()) {
+                switch (message.op) {
+                    case CacheMapMessage.OP_SET:
+                    case CacheMapMessage.OP_DELETE:
+                        if(storeEntryIfNewer(new CacheEntry(message.key, message.value, message.sequence, message.origin)))
+                            publishChange(message.key, message.value);
                         break;
-                    case 2:
-                        internalMap.put(msgSplit[0], new CacheEntry(msgSplit[1]));
-                        publishChange(msgSplit[0], msgSplit[1]);
+                    case CacheMapMessage.OP_INVALIDATE:
+                        onRemoteInvalidate(message.key, message.sequence, message.origin);
+                        break;
+                    case CacheMapMessage.OP_CLEAR:
+                        invalidateAll();
                         break;
                 }
             }
         }
+
+        /**
+         * Handles messages sent by nodes predating the versioned message format
+         */
+        private void onLegacyMessage(final String c_message) {
+            final String[] msgSplit = c_message.split("\0");
+            switch (msgSplit.length) {
+                case 1:
+                    if(msgSplit[0].charAt(0) == '\1') {
+                        clearEntries();
+                    } else {
+                        removeEntry(msgSplit[0]);
+                        publishChange(msgSplit[0], null);
+                    }
+                    break;
+                case 2:
+                    storeEntry(new CacheEntry(msgSplit[0], msgSplit[1]));
+                    publishChange(msgSplit[0], msgSplit[1]);
+                    break;
+            }
+        }
     }
 
-    public CacheMap(final RedisManager redisManager, final long expiryTime, final String _name, final Map<String, String> parentMap) {
-        this.redisManager = redisManager;
-        this.expiryTime = expiryTime;
-        this.parentMap = parentMap;
-        this.name = "cachemap_changes:" + _name;
+    /**
+     * Handles a change whose value was not sent along. Like a deletion, it leaves an entry carrying its
+     * version behind, so older changes arriving late are still rejected.
+     */
+    private void onRemoteInvalidate(String key, long version, String origin) {
+        if(replicated) {
+            final String value = readParent(parent -> parent.get(key));
+            if(storeEntryIfNewer(new CacheEntry(key, value, version, origin)))
+                publishChange(key, value);
+            return;
+        }
+        if(!storeEntryIfNewer(new CacheEntry(key, version, origin)))
+            return;
+        // Loads in flight read the old value, the next get has to start over
+        loadingMap.remove(key);
+        if(hasOnChangeHooks())
+            publishChange(key, get(key));
+    }
 
-        Thread cleanupThread = redisManager.threadCreator.createThread(new Runnable() {
-            @Override
-            public void run() {
-                while(redisManager.running) {
+    /**
+     * Pulls the whole parent map again on the async worker pool, once per burst of requests.
+     * Replicas use this whenever they may have missed changes, as they have nothing to reload from on a miss.
+     */
+    private void scheduleResync() {
+        if(!resyncPending.compareAndSet(false, true))
+            return;
+        try {
+            redisManager.async().execute(new Runnable() {
+                @Override
+                public void run() {
+                    resyncPending.set(false);
                     try {
-                        Thread.sleep(expiryTime / 2L);
-                        final long currentTime = System.currentTimeMillis();
-                        synchronized (internalMap) {
-                            final Set<String> keysToRemove = new HashSet<>();
-                            for(Entry<String, CacheEntry> entry : internalMap.entrySet())
-                                if(entry.getValue().expiry < currentTime)
-                                    keysToRemove.add(entry.getKey());
-                            for(String key : keysToRemove)
-                                internalMap.remove(key);
-                        }
+                        snapshot();
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            resyncPending.set(false);
+        }
+    }
+
+    private CacheMapMessage.Writer newMessage(long version) {
+        return new CacheMapMessage.Writer(originId, version);
+    }
+
+    /**
+     * Writes changes made by this node to the parent map and, once that succeeded, to the cache.
+     * A failed write may still have reached the parent map, so the changed keys are invalidated instead.
+     * @param changes Values to set, keys mapped to null are removed
+     * @param returnOld Whether to return the previous value of the (single) changed key
+     */
+    private String write(Map<String, String> changes, boolean returnOld) {
+        final long version = sequence.incrementAndGet();
+        final CacheMapMessage.Writer message = newMessage(version);
+        for(Entry<String, String> change : changes.entrySet()) {
+            if(change.getValue() == null)
+                message.delete(change.getKey());
+            else
+                appendSet(message, change.getKey(), change.getValue());
+        }
+
+        final String old;
+        try {
+            old = writeParent(message, changes, returnOld);
+        } catch (RuntimeException e) {
+            if(replicated) {
+                scheduleResync();
+            } else {
+                for(String key : changes.keySet())
+                    removeEntry(key);
             }
-        });
-        cleanupThread.setName("RedisCacheMapCleanupThread-" + this.name);
-        cleanupThread.setDaemon(true);
-        cleanupThread.start();
-        redisManager.addThread(cleanupThread);
+            throw e;
+        }
+
+        // A newer remote change may have arrived while we were writing
+        for(Entry<String, String> change : changes.entrySet())
+            if(storeEntryIfNewer(new CacheEntry(change.getKey(), change.getValue(), version, originId)))
+                publishChange(change.getKey(), change.getValue());
+        return old;
+    }
+
+    /**
+     * Orders changes by (sequence, origin), sequences being a Lamport clock shared by all nodes
+     */
+    private static boolean isNewer(long version, String origin, CacheEntry entry) {
+        if(entry == null)
+            return true;
+        if(version != entry.version)
+            return version > entry.version;
+        return origin.compareTo(entry.origin) > 0;
+    }
+
+    private CacheMapMessage.Writer appendSet(CacheMapMessage.Writer message, String key, String value) {
+        if(invalidateThreshold >= 0 && value.length() > invalidateThreshold)
+            return message.invalidate(key);
+        return message.set(key, value);
+    }
+
+    public CacheMap(final RedisManager redisManager, final long expiryTime, final String _name, final Map<String, String> parentMap) {
+        this(redisManager, expiryTime, 0, 0L, _name, parentMap);
+    }
+
+    /**
+     * Creates a size-bounded cache. When either bound is exceeded, entries are evicted
+     * in insertion order, with entries hit since they were last considered getting a second chance.
+     * @param redisManager Manager used for change notifications
+     * @param expiryTime Time in milliseconds after which entries are reloaded
+     * @param maxEntries Maximum amount of cached entries (0 for unbounded)
+     * @param maxBytes Approximate maximum memory used by cached keys and values (0 for unbounded)
+     * @param _name Name of the cache
+     * @param parentMap Map backing this cache (locked on for every access unless it is a {@link RedisManager.RedisMap})
+     */
+    public CacheMap(final RedisManager redisManager, final long expiryTime, final int maxEntries, final long maxBytes, final String _name, final Map<String, String> parentMap) {
+        this(redisManager, expiryTime, maxEntries, maxBytes, false, _name, parentMap);
+    }
+
+    /**
+     * Creates a full replica of the parent map. The whole map is loaded once and then kept
+     * up to date purely through change messages (resyncing whenever the subscription is
+     * re-established), so all reads are served from memory without contacting Redis.
+     * @param redisManager Manager used for change notifications
+     * @param _name Name of the cache
+     * @param parentMap Map backing this cache (locked on for every access unless it is a {@link RedisManager.RedisMap})
+     */
+    public CacheMap(final RedisManager redisManager, final String _name, final Map<String, String> parentMap) {
+        this(redisManager, Long.MAX_VALUE, 0, 0L, true, _name, parentMap);
+    }
+
+    private CacheMap(final RedisManager redisManager, final long expiryTime, final int maxEntries, final long maxBytes, final boolean replicated, final String _name, final Map<String, String> parentMap) {
+        this.redisManager = redisManager;
+        this.replicated = replicated;
+        this.expiryTime = expiryTime;
+        this.negativeExpiryTime = expiryTime;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.parentMap = parentMap;
+        this.name = "cachemap_changes:" + _name;
+        this.originId = redisManager.nodeId + ":" + originCounter.incrementAndGet();
+
+        this.expiryScheduler = redisManager.getCacheExpiryScheduler();
 
         this.jedisPubSubListener = new JedisPubSubListener(this.name);
+        this.jedisPubSubListener.start();
+
+        if(replicated) {
+            // Load only once changes are being received, so none can slip through in between
+            try {
+                subscribed.await(INITIAL_SUBSCRIBE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // If the confirmation is late, it triggers another resync instead
+            subscribed.countDown();
+            snapshot();
+        }
     }
 
-    private class CacheEntry {
+    private class CacheEntry extends CacheExpiryScheduler.Expiring {
+        private final String key;
         private final String data;
-        private final long expiry;
-        private CacheEntry(String data) {
+        private final long refreshTime;
+        private final long version;
+        private final String origin;
+        // Marks a key changed remotely, which has to be reloaded before being served again
+        private final boolean reload;
+        // Creation order of entries, telling a resync which entries it may be older than
+        private final long stamp = entryStamps.incrementAndGet();
+        private volatile int frequency = 0;
+        private CacheEntry(String key, String data) {
+            this(key, data, 0L, "");
+        }
+
+        private CacheEntry(String key, String data, long version, String origin) {
+            this(key, data, version, origin, System.currentTimeMillis(), data == null ? negativeExpiryTime : expiryTime, false);
+        }
+
+        private CacheEntry(String key, long version, String origin) {
+            this(key, null, version, origin, System.currentTimeMillis(), expiryTime, true);
+        }
+
+        private CacheEntry(String key, String data, long version, String origin, long now, long lifetime, boolean reload) {
+            // Replicas keep values until told otherwise, but deletion markers only as long as late messages may arrive
+            super(replicated ? (data == null ? now + REPLICATED_TOMBSTONE_LIFETIME : Long.MAX_VALUE) : now + lifetime);
+            this.key = key;
             this.data = data;
-            this.expiry = System.currentTimeMillis() + expiryTime;
+            this.version = version;
+            this.origin = origin;
+            this.reload = reload;
+            final double factor = refreshAheadFactor;
+            this.refreshTime = (factor > 0D && !replicated) ? now + (long)(lifetime * factor) : Long.MAX_VALUE;
         }
 
-        private boolean isExpired() {
-            return expiry < System.currentTimeMillis();
+        private boolean shouldRefresh() {
+            return refreshTime < System.currentTimeMillis();
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || !(o instanceof CacheEntry)) return false;
+        void expire() {
+            removeEntry(this);
+        }
 
-            CacheEntry that = (CacheEntry) o;
+        private long getWeight() {
+            // Rough heap footprint: object headers plus two bytes per char
+            return 96L + 2L * (key.length() + (data == null ? 0 : data.length()));
+        }
 
-            if (data != null ? !data.equals(that.data) : that.data != null) return false;
+        private void onHit() {
+            if(frequency < MAX_FREQUENCY)
+                frequency++;
+        }
 
-            return true;
+        private boolean isExpired() {
+            return expiry < System.currentTimeMillis();
         }
 
-        @Override
-        public int hashCode() {
-            return data != null ? data.hashCode() : 0;
+        private boolean isUsable() {
+            return !reload && !isExpired();
         }
     }
-    private final HashMap<String, CacheEntry> internalMap =  new HashMap<>();
+    // Entries compare by identity, so conditional replace/remove only ever touch the exact entry observed
+    private final ConcurrentHashMap<String, CacheEntry> internalMap = new ConcurrentHashMap<>();
+    private final AtomicBoolean resyncPending = new AtomicBoolean();
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loadingMap = new ConcurrentHashMap<>();
     private final Map<String, String> parentMap;
 
+    private final ConcurrentLinkedQueue<CacheEntry> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger evictionQueueSize = new AtomicInteger();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private boolean isBounded() {
+        return maxEntries > 0 || maxBytes > 0L;
+    }
+
+    private boolean isOverBudget() {
+        return (maxEntries > 0 && internalMap.size() > maxEntries) || (maxBytes > 0L && usedBytes.get() > maxBytes);
+    }
+
+    private void storeEntry(CacheEntry entry) {
+        onEntryReplaced(internalMap.put(entry.key, entry), entry);
+    }
+
+    private boolean replaceEntry(CacheEntry oldEntry, CacheEntry newEntry) {
+        if(oldEntry == null) {
+            if(internalMap.putIfAbsent(newEntry.key, newEntry) != null)
+                return false;
+        } else if(!internalMap.replace(newEntry.key, oldEntry, newEntry)) {
+            return false;
+        }
+        onEntryReplaced(oldEntry, newEntry);
+        return true;
+    }
+
+    private boolean storeEntryIfNewer(CacheEntry entry) {
+        while(true) {
+            final CacheEntry current = internalMap.get(entry.key);
+            if(!isNewer(entry.version, entry.origin, current))
+                return false;
+            if(replaceEntry(current, entry))
+                return true;
+        }
+    }
+
+    private void removeEntry(String key) {
+        onEntryReplaced(internalMap.remove(key), null);
+    }
+
+    private void removeEntry(CacheEntry entry) {
+        if(internalMap.remove(entry.key, entry))
+            onEntryReplaced(entry, null);
+    }
+
+    private void clearEntries() {
+        for(CacheEntry entry : internalMap.values())
+            expiryScheduler.cancel(entry);
+        internalMap.clear();
+        if(isBounded()) {
+            evictionQueue.clear();
+            evictionQueueSize.set(0);
+            usedBytes.set(0L);
+        }
+    }
+
+    /**
+     * Drops all cached entries, making sure loads already in flight do not cache what they read
+     */
+    void invalidateAll() {
+        invalidationEpoch++;
+        clearEntries();
+    }
+
+    private void onEntryReplaced(CacheEntry oldEntry, CacheEntry newEntry) {
+        if(oldEntry != null)
+            expiryScheduler.cancel(oldEntry);
+        if(newEntry != null && newEntry.expiry != Long.MAX_VALUE)
+            expiryScheduler.schedule(newEntry);
+        if(!isBounded())
+            return;
+        if(oldEntry != null)
+            usedBytes.addAndGet(-oldEntry.getWeight());
+        if(newEntry == null)
+            return;
+        usedBytes.addAndGet(newEntry.getWeight());
+        evictionQueue.offer(newEntry);
+        if(evictionQueueSize.incrementAndGet() > 2 * internalMap.size() + 64)
+            compactEvictionQueue();
+        evict();
+    }
+
+    private void evict() {
+        while(isOverBudget()) {
+            final CacheEntry candidate = evictionQueue.poll();
+            if(candidate == null)
+                return;
+            evictionQueueSize.decrementAndGet();
+            if(internalMap.get(candidate.key) != candidate)
+                continue;
+            if(candidate.frequency > 0) {
+                candidate.frequency--;
+                evictionQueue.offer(candidate);
+                evictionQueueSize.incrementAndGet();
+                continue;
+            }
+            removeEntry(candidate);
+        }
+    }
+
+    /**
+     * Drops queue nodes of entries which were replaced or removed without being evicted
+     */
+    private void compactEvictionQueue() {
+        if(!compacting.compareAndSet(false, true))
+            return;
+        try {
+            for(int i = evictionQueueSize.get(); i > 0; i--) {
+                final CacheEntry entry = evictionQueue.poll();
+                if(entry == null)
+                    break;
+                if(internalMap.get(entry.key) == entry)
+                    evictionQueue.offer(entry);
+                else
+                    evictionQueueSize.decrementAndGet();
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Reads from the parent map. RedisMaps may be read concurrently, any other parent
+     * is locked for the read just like for every write to it.
+     */
+    private <T> T readParent(Function<Map<String, String>, T> read) {
+        if(parentMap instanceof RedisManager.RedisMap)
+            return read.apply(parentMap);
+        synchronized (parentMap) {
+            return read.apply(parentMap);
+        }
+    }
+
     @Override
     public int size() {
-        throw new RuntimeException("Not implemented");
+        if(replicated)
+            return localSnapshot().size();
+        return readParent(Map::size);
     }
 
     @Override
     public boolean isEmpty() {
-        synchronized (internalMap) {
-            synchronized (parentMap) {
-                return internalMap.isEmpty() && parentMap.isEmpty();
-            }
-        }
+        if(replicated)
+            return localSnapshot().isEmpty();
+        // Cached entries may be tombstones, only Redis knows
+        return readParent(Map::isEmpty);
     }
 
     @Override
@@ -174,92 +589,276 @@ public class CacheMap implements Map<String, String> {
 
     @Override
     public boolean containsValue(Object value) {
-        throw new RuntimeException("Not implemented");
+        if(replicated)
+            return localSnapshot().containsValue(value);
+        return readParent(parent -> parent.containsValue(value));
+    }
+
+    private Map<String, String> localSnapshot() {
+        final Map<String, String> snapshot = new HashMap<>();
+        for(CacheEntry cacheEntry : internalMap.values())
+            if(cacheEntry.data != null)
+                snapshot.put(cacheEntry.key, cacheEntry.data);
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Fetches the whole parent map in one round trip and warms the cache with it.
+     * Entries changed after the fetch started are newer than what it returned and are kept.
+     * @return Unmodifiable copy of the parent map
+     */
+    public Map<String, String> snapshot() {
+        final long since = entryStamps.get();
+        final Map<String, String> snapshot = readParent(parent -> parent instanceof RedisManager.RedisMap ?
+                ((RedisManager.RedisMap)parent).snapshot() : new HashMap<>(parent));
+
+        for(Entry<String, String> entry : snapshot.entrySet()) {
+            while(true) {
+                final CacheEntry current = internalMap.get(entry.getKey());
+                if(current != null && current.stamp > since)
+                    break;
+                if(replaceEntry(current, loadedEntry(entry.getKey(), entry.getValue(), current)))
+                    break;
+            }
+        }
+        // Anything cached but not in the snapshot has been removed meanwhile
+        for(CacheEntry cacheEntry : internalMap.values()) {
+            if(cacheEntry.stamp > since || cacheEntry.data == null || snapshot.containsKey(cacheEntry.key))
+                continue;
+            if(replicated || negativeExpiryTime > 0L)
+                replaceEntry(cacheEntry, new CacheEntry(cacheEntry.key, null, cacheEntry.version, cacheEntry.origin));
+            else
+                removeEntry(cacheEntry);
+        }
+
+        return Collections.unmodifiableMap(snapshot);
     }
 
     @Override
     public String get(Object key) {
-        CacheEntry cacheEntry;
-        synchronized (internalMap) {
-            cacheEntry = internalMap.get(key);
-        }
-        if(cacheEntry != null && !cacheEntry.isExpired())
+        final String keyString = key.toString();
+        final CacheEntry cacheEntry = internalMap.get(keyString);
+        if(replicated)
+            return cacheEntry == null ? null : cacheEntry.data;
+        if(cacheEntry != null && cacheEntry.isUsable()) {
+            cacheEntry.onHit();
+            if(cacheEntry.shouldRefresh())
+                refresh(keyString, cacheEntry);
             return cacheEntry.data;
-        final String value;
-        synchronized (parentMap) {
-            value = parentMap.get(key);
         }
-        cacheEntry = new CacheEntry(value);
-        synchronized (internalMap) {
-            internalMap.put(key.toString(), cacheEntry);
+        return load(keyString, cacheEntry);
+    }
+
+    /**
+     * Reloads a key on the async worker pool unless a load for it is already in flight
+     * @param key Key to reload
+     * @param staleEntry Entry currently cached for the key
+     */
+    private void refresh(final String key, final CacheEntry staleEntry) {
+        final CompletableFuture<String> loader = new CompletableFuture<>();
+        if(loadingMap.putIfAbsent(key, loader) != null)
+            return;
+        try {
+            redisManager.async().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadEntry(key, staleEntry, loader);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loadingMap.remove(key, loader);
+            loader.complete(staleEntry.data);
+        }
+    }
+
+    /**
+     * Loads a key from the parent map, sharing one load between all threads missing the same key
+     * @param key Key to load
+     * @param staleEntry Entry found in the cache before loading (null if none)
+     * @return Value of the key in the parent map
+     */
+    private String load(final String key, final CacheEntry staleEntry) {
+        final CompletableFuture<String> loader = new CompletableFuture<>();
+        final CompletableFuture<String> inFlight = loadingMap.putIfAbsent(key, loader);
+        if(inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw e;
+            }
         }
-        return value;
+
+        return loadEntry(key, staleEntry, loader);
     }
 
-    @Override
-    public String put(String key, String value) {
-        synchronized (internalMap) {
-            internalMap.put(key, new CacheEntry(value));
+    private String loadEntry(final String key, final CacheEntry staleEntry, final CompletableFuture<String> loader) {
+        try {
+            final long epoch = invalidationEpoch;
+            final String value = readParent(parent -> parent.get(key));
+            // Only cache the loaded value if nobody changed the entry while we were loading
+            if((value != null || negativeExpiryTime > 0L) && epoch == invalidationEpoch)
+                replaceEntry(staleEntry, loadedEntry(key, value, staleEntry));
+            loader.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            loader.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingMap.remove(key, loader);
+        }
+    }
+
+    /**
+     * Gets multiple keys, serving cached ones locally and fetching all others in one round trip
+     * @param keys Keys to get
+     * @return Map of all requested keys which exist
+     */
+    public Map<String, String> getAll(Collection<String> keys) {
+        final Map<String, String> result = new HashMap<>();
+        final Map<String, CacheEntry> missing = new HashMap<>();
+        for(String key : keys) {
+            final CacheEntry cacheEntry = internalMap.get(key);
+            if(cacheEntry != null && cacheEntry.isUsable()) {
+                cacheEntry.onHit();
+                if(cacheEntry.data != null)
+                    result.put(key, cacheEntry.data);
+            } else {
+                missing.put(key, cacheEntry);
+            }
         }
-        redisManager.publish(name, key + '\0' + value);
+        if(missing.isEmpty() || replicated)
+            return result;
+
+        final long epoch = invalidationEpoch;
+        final Map<String, String> loaded = loadAll(missing.keySet());
+        for(Entry<String, CacheEntry> entry : missing.entrySet()) {
+            final String value = loaded.get(entry.getKey());
+            if((value != null || negativeExpiryTime > 0L) && epoch == invalidationEpoch)
+                replaceEntry(entry.getValue(), loadedEntry(entry.getKey(), value, entry.getValue()));
+            if(value != null)
+                result.put(entry.getKey(), value);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the entry for a value read from the parent map. It keeps the version of the entry it replaces,
+     * so changes already applied are not undone by late messages.
+     */
+    private CacheEntry loadedEntry(String key, String value, CacheEntry staleEntry) {
+        if(staleEntry == null)
+            return new CacheEntry(key, value);
+        return new CacheEntry(key, value, staleEntry.version, staleEntry.origin);
+    }
+
+    private Map<String, String> loadAll(Collection<String> keys) {
+        return readParent(parent -> {
+            if(parent instanceof RedisManager.RedisMap)
+                return ((RedisManager.RedisMap)parent).getAll(keys);
+            final Map<String, String> result = new HashMap<>();
+            for(String key : keys) {
+                final String value = parent.get(key);
+                if(value != null)
+                    result.put(key, value);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Writes changes to the parent map, then publishes the message describing them. Receivers may
+     * reload from the parent map as soon as they get the message, so it must never arrive earlier.
+     * @param returnOld Whether to return the previous value of the (single) changed key
+     */
+    private String writeParent(CacheMapMessage.Writer message, Map<String, String> changes, boolean returnOld) {
+        if(parentMap instanceof RedisManager.RedisMap)
+            return ((RedisManager.RedisMap)parentMap).writeAndPublish(changes, returnOld, name, message.toString());
+        String old = null;
         synchronized (parentMap) {
-            return parentMap.put(key, value);
+            for(Entry<String, String> change : changes.entrySet()) {
+                if(change.getValue() == null)
+                    old = parentMap.remove(change.getKey());
+                else
+                    old = parentMap.put(change.getKey(), change.getValue());
+            }
         }
+        redisManager.publish(name, message.toString());
+        return old;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return write(Collections.singletonMap(key, value), true);
     }
 
     @Override
     public String remove(Object key) {
-        synchronized (internalMap) {
-            internalMap.remove(key);
-        }
-        redisManager.publish(name, key.toString());
-        synchronized (parentMap) {
-            return parentMap.remove(key);
-        }
+        return write(Collections.singletonMap(key.toString(), null), true);
+    }
+
+    /**
+     * Sets a key without reading its previous value from the parent map
+     * @param key Key to set
+     * @param value Value to set
+     */
+    public void fastPut(String key, String value) {
+        write(Collections.singletonMap(key, value), false);
+    }
+
+    /**
+     * Removes a key without reading its previous value from the parent map
+     * @param key Key to remove
+     */
+    public void fastRemove(String key) {
+        write(Collections.singletonMap(key, null), false);
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends String> m) {
-        for(Entry<? extends String,? extends String> entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
-        }
+        if(m.isEmpty())
+            return;
+        write(new LinkedHashMap<String, String>(m), false);
     }
 
     @Override
     public void clear() {
-        synchronized (internalMap) {
-            internalMap.clear();
-        }
-        redisManager.publish(name, "\1");
-        synchronized (parentMap) {
-            parentMap.clear();
+        final String message = newMessage(sequence.incrementAndGet()).clear().toString();
+        if(parentMap instanceof RedisManager.RedisMap) {
+            ((RedisManager.RedisMap)parentMap).clearAndPublish(name, message);
+        } else {
+            synchronized (parentMap) {
+                parentMap.clear();
+            }
+            redisManager.publish(name, message);
         }
+        invalidateAll();
     }
 
     @Override
     public Set<String> keySet() {
-        synchronized (parentMap) {
-            return parentMap.keySet();
-        }
+        return (replicated ? localSnapshot() : snapshot()).keySet();
     }
 
     @Override
     public Collection<String> values() {
-        synchronized (parentMap) {
-            return parentMap.values();
-        }
+        return (replicated ? localSnapshot() : snapshot()).values();
     }
 
     @Override
     public Set<Entry<String, String>> entrySet() {
-        synchronized (parentMap) {
-            return parentMap.entrySet();
-        }
+        return (replicated ? localSnapshot() : snapshot()).entrySet();
     }
 
     public interface OnChangeHook {
         /**
-         * Entry change delegate functional interface
+         * Entry change delegate functional interface.
+         * Called on the writing thread for changes made by this node and on the listener thread for all others.
          * @param key Key of changed entry
          * @param value Value of changed entry (null if removed)
          */
@@ -0,0 +1,148 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+/**
+ * Wire format of {@link CacheMap} change messages.
+ *
+ * A message is the version marker followed by the length-prefixed id of the sending cache and
+ * sequence number, then one or more operations. Each operation is an op code followed by
+ * its length-prefixed arguments. A length-prefixed field is the decimal length, a colon
+ * and that many characters, so keys and values may contain any character including NUL.
+ *
+ * The version marker is the character older nodes treat as "clear everything" when it starts
+ * a message without NULs, so during a rollout they drop their whole cache on every change
+ * from an upgraded node rather than keep stale entries. Messages whose keys or values contain
+ * NUL are misread by older nodes; those must not be mixed with nodes predating this format.
+ */
+final class CacheMapMessage {
+    static final char VERSION_1 = '\1';
+
+    static final char OP_SET = 'S';
+    static final char OP_DELETE = 'D';
+    static final char OP_INVALIDATE = 'I';
+    static final char OP_CLEAR = 'C';
+
+    private CacheMapMessage() { }
+
+    static boolean isVersioned(String message) {
+        // A lone marker is the legacy clear message
+        return message.length() > 1 && message.charAt(0) == VERSION_1;
+    }
+
+    static class Writer {
+        private final StringBuilder message = new StringBuilder();
+
+        Writer(String origin, long sequence) {
+            message.append(VERSION_1);
+            field(origin);
+            field(Long.toString(sequence));
+        }
+
+        private void field(String value) {
+            message.append(value.length()).append(':').append(value);
+        }
+
+        Writer set(String key, String value) {
+            message.append(OP_SET);
+            field(key);
+            field(value);
+            return this;
+        }
+
+        Writer delete(String key) {
+            message.append(OP_DELETE);
+            field(key);
+            return this;
+        }
+
+        Writer invalidate(String key) {
+            message.append(OP_INVALIDATE);
+            field(key);
+            return this;
+        }
+
+        Writer clear() {
+            message.append(OP_CLEAR);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return message.toString();
+        }
+    }
+
+    static class Reader {
+        private final String message;
+        private int position = 1;
+
+        final String origin;
+        final long sequence;
+
+        char op;
+        String key;
+        String value;
+
+        Reader(String message) {
+            this.message = message;
+            this.origin = field();
+            this.sequence = Long.parseLong(field());
+        }
+
+        private String field() {
+            int length = 0;
+            char c;
+            while((c = message.charAt(position++)) != ':') {
+                if(c < '0' || c > '9')
+                    throw new IllegalArgumentException("Malformed cache message length");
+                length = length * 10 + (c - '0');
+            }
+            final int start = position;
+            position += length;
+            return message.substring(start, position);
+        }
+
+        /**
+         * Advances to the next operation of the message
+         * @return false if there are no more operations
+         */
+        boolean next() {
+            if(position >= message.length())
+                return false;
+            op = message.charAt(position++);
+            key = null;
+            value = null;
+            switch (op) {
+                case OP_SET:
+                    key = field();
+                    value = field();
+                    break;
+                case OP_DELETE:
+                case OP_INVALIDATE:
+                    key = field();
+                    break;
+                case OP_CLEAR:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown cache message op " + op);
+            }
+            return true;
+        }
+    }
+}
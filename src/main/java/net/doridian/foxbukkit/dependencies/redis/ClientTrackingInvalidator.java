@@ -0,0 +1,245 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Receives server-side invalidations for tracked keys using Redis client-side caching
+ * (CLIENT TRACKING in BCAST mode, redirected to a connection subscribed to __redis__:invalidate).
+ * Unlike cachemap_changes: messages, this also catches writes made by other tools or Lua scripts.
+ * Invalidation payloads are arrays of keys, which JedisPubSub cannot parse, so the
+ * subscription is read directly off its connection.
+ */
+class ClientTrackingInvalidator {
+    private static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+    private final RedisManager redisManager;
+    private final Map<String, List<Runnable>> trackedKeys = new ConcurrentHashMap<>();
+
+    private volatile Jedis subscriber = null;
+    private Jedis tracker = null;
+    private long subscriberId = -1L;
+    private final Set<String> registeredPrefixes = new HashSet<>();
+    private int failures = 0;
+
+    ClientTrackingInvalidator(final RedisManager redisManager) {
+        this.redisManager = redisManager;
+
+        Thread t = redisManager.blockingThreadCreator.createThread(new Runnable() {
+            @Override
+            public void run() {
+                while (redisManager.running) {
+                    try {
+                        listen();
+                    } catch (RedisManager.PoolClosedException e) {
+                        return;
+                    } catch (Exception e) {
+                        if(redisManager.running)
+                            redisManager.retryPolicy.report(e);
+                    } finally {
+                        disconnect();
+                    }
+                    // Invalidations sent while we were disconnected are lost
+                    invalidateAll();
+                    if(!redisManager.retryPolicy.pause(++failures))
+                        return;
+                }
+            }
+        });
+        t.setName("RedisClientTrackingThread");
+        t.setDaemon(true);
+        t.start();
+        redisManager.addThread(t);
+    }
+
+    /**
+     * Calls the given callback whenever the key is modified by anyone
+     * @param key Key to track
+     * @param onInvalidate Callback invoked on the tracking thread
+     */
+    void track(String key, Runnable onInvalidate) {
+        trackedKeys.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(onInvalidate);
+        synchronized (this) {
+            if(tracker == null)
+                return;
+            try {
+                addPrefix(key);
+            } catch (Exception e) {
+                e.printStackTrace();
+                subscriber.getClient().setBroken();
+                subscriber.getClient().disconnect();
+            }
+        }
+        // Writes made before tracking covered this key were not reported
+        onInvalidate.run();
+    }
+
+    void stop() {
+        final Jedis _subscriber = subscriber;
+        if(_subscriber != null) {
+            try {
+                _subscriber.getClient().disconnect();
+            } catch (Exception e) { }
+        }
+    }
+
+    private void listen() {
+        final Jedis _subscriber = redisManager.getResource();
+        subscriber = _subscriber;
+        final Connection connection = _subscriber.getClient();
+        final long clientId = _subscriber.clientId();
+        connection.sendCommand(Protocol.Command.SUBSCRIBE, INVALIDATE_CHANNEL);
+        connection.setTimeoutInfinite();
+        connection.getObjectMultiBulkReply();
+
+        synchronized (this) {
+            subscriberId = clientId;
+            tracker = redisManager.getResource();
+            enableTracking();
+        }
+        failures = 0;
+        invalidateAll();
+
+        while (redisManager.running) {
+            final List<?> push = (List<?>)connection.getUnflushedObject();
+            if(!"message".equals(new String((byte[])push.get(0), StandardCharsets.UTF_8)))
+                continue;
+            final Object payload = push.get(2);
+            if(payload == null) {
+                // FLUSHDB / FLUSHALL
+                invalidateAll();
+            } else if(payload instanceof List) {
+                for(Object key : (List<?>)payload)
+                    invalidate(new String((byte[])key, StandardCharsets.UTF_8));
+            } else {
+                invalidate(new String((byte[])payload, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Enables tracking of all registered keys. Overlapping prefixes are rejected by Redis,
+     * so only the shortest ones are registered.
+     */
+    private void enableTracking() {
+        registeredPrefixes.clear();
+        for(String key : trackedKeys.keySet()) {
+            if(!overlaps(key, trackedKeys.keySet()))
+                registeredPrefixes.add(key);
+        }
+        sendTrackingOn(registeredPrefixes);
+    }
+
+    /**
+     * Adds a prefix while tracking stays on, so no invalidation of already tracked keys is missed
+     */
+    private void addPrefix(String key) {
+        for(String prefix : registeredPrefixes) {
+            if(key.startsWith(prefix))
+                return;
+        }
+        boolean coversRegistered = false;
+        for(String prefix : registeredPrefixes) {
+            if(prefix.startsWith(key)) {
+                coversRegistered = true;
+                break;
+            }
+        }
+        if(!coversRegistered) {
+            registeredPrefixes.add(key);
+            sendTrackingOn(Collections.singleton(key));
+            return;
+        }
+        // The new key covers prefixes already registered, which can only be replaced by starting over
+        tracker.sendCommand(Protocol.Command.CLIENT, "TRACKING", "OFF");
+        enableTracking();
+        // Invalidations sent while tracking was off are lost
+        invalidateAll();
+    }
+
+    private static boolean overlaps(String key, Set<String> prefixes) {
+        for(String other : prefixes) {
+            if(!other.equals(key) && key.startsWith(other))
+                return true;
+        }
+        return false;
+    }
+
+    private void sendTrackingOn(Set<String> prefixes) {
+        final List<String> args = new ArrayList<>();
+        args.add("TRACKING");
+        args.add("ON");
+        args.add("REDIRECT");
+        args.add(Long.toString(subscriberId));
+        args.add("BCAST");
+        for(String prefix : prefixes) {
+            args.add("PREFIX");
+            args.add(prefix);
+        }
+        tracker.sendCommand(Protocol.Command.CLIENT, args.toArray(new String[0]));
+    }
+
+    private void disconnect() {
+        synchronized (this) {
+            if(tracker != null) {
+                try {
+                    // Never hand a connection with tracking enabled back to the pool
+                    tracker.getClient().setBroken();
+                    tracker.close();
+                } catch (Exception e) { }
+                tracker = null;
+            }
+            subscriberId = -1L;
+        }
+        final Jedis _subscriber = subscriber;
+        subscriber = null;
+        if(_subscriber != null) {
+            try {
+                _subscriber.getClient().setBroken();
+                _subscriber.close();
+            } catch (Exception e) { }
+        }
+    }
+
+    private void invalidate(String key) {
+        final List<Runnable> callbacks = trackedKeys.get(key);
+        if(callbacks == null)
+            return;
+        for(Runnable callback : callbacks)
+            callback.run();
+    }
+
+    private void invalidateAll() {
+        for(List<Runnable> callbacks : trackedKeys.values())
+            for(Runnable callback : callbacks)
+                callback.run();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Collects commands to be sent to Redis in a single pipelined round trip.
+ * Commands are only recorded here; they are sent when the batch is executed
+ * by {@link RedisManager#pipeline(java.util.function.Consumer)}, and may be
+ * re-sent on a fresh connection if the first attempt fails. Error replies are kept
+ * per command and thrown by {@link Result#get()} of the command that caused them.
+ */
+public class RedisBatch {
+    private final List<Command<?>> commands = new ArrayList<>();
+
+    public static class Result<T> {
+        private volatile T value;
+        private volatile RuntimeException error;
+        private volatile boolean done = false;
+
+        private Result() { }
+
+        /**
+         * Gets the reply of this command
+         * @return Reply of the command
+         * @throws IllegalStateException If the batch has not been executed yet
+         * @throws redis.clients.jedis.exceptions.JedisDataException If Redis replied to this command with an error
+         */
+        public T get() {
+            if(!done)
+                throw new IllegalStateException("Batch has not been executed yet");
+            if(error != null)
+                throw error;
+            return value;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return true if Redis replied to this command with an error
+         */
+        public boolean isFailed() {
+            return error != null;
+        }
+
+        private void complete(T value) {
+            this.value = value;
+            this.done = true;
+        }
+
+        private void fail(RuntimeException error) {
+            this.error = error;
+            this.done = true;
+        }
+    }
+
+    private static class Command<T> {
+        private final Function<Pipeline, Response<T>> call;
+        private final Result<T> result = new Result<>();
+        private Response<T> response;
+
+        private Command(Function<Pipeline, Response<T>> call) {
+            this.call = call;
+        }
+
+        private void queue(Pipeline pipeline) {
+            response = call.apply(pipeline);
+        }
+
+        private void complete() {
+            final T value;
+            try {
+                value = response.get();
+            } catch (JedisDataException e) {
+                // Only this command failed, the others of the batch still have their replies
+                result.fail(e);
+                return;
+            }
+            result.complete(value);
+        }
+    }
+
+    RedisBatch() { }
+
+    private <T> Result<T> add(Function<Pipeline, Response<T>> call) {
+        final Command<T> command = new Command<>(call);
+        commands.add(command);
+        return command.result;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    void execute(Jedis jedis) {
+        if(commands.isEmpty())
+            return;
+        final Pipeline pipeline = jedis.pipelined();
+        for(Command<?> command : commands)
+            command.queue(pipeline);
+        pipeline.sync();
+        for(Command<?> command : commands)
+            command.complete();
+    }
+
+    public Result<Long> incrBy(String key, long amount) {
+        return add(pipeline -> pipeline.incrBy(key, amount));
+    }
+
+    public Result<String> get(String key) {
+        return add(pipeline -> pipeline.get(key));
+    }
+
+    public Result<String> set(String key, String value) {
+        return add(pipeline -> pipeline.set(key, value));
+    }
+
+    public Result<String> setex(String key, int expiry, String value) {
+        return add(pipeline -> pipeline.setex(key, expiry, value));
+    }
+
+    public Result<Long> del(String key) {
+        return add(pipeline -> pipeline.del(key));
+    }
+
+    public Result<Long> zadd(String key, double score, String value) {
+        return add(pipeline -> pipeline.zadd(key, score, value));
+    }
+
+    public Result<Long> zrem(String key, String... value) {
+        return add(pipeline -> pipeline.zrem(key, value));
+    }
+
+    public Result<Long> sadd(String key, String... value) {
+        return add(pipeline -> pipeline.sadd(key, value));
+    }
+
+    public Result<Long> srem(String key, String... value) {
+        return add(pipeline -> pipeline.srem(key, value));
+    }
+
+    public Result<Set<String>> smembers(String key) {
+        return add(pipeline -> pipeline.smembers(key));
+    }
+
+    public Result<Boolean> hexists(String key, String index) {
+        return add(pipeline -> pipeline.hexists(key, index));
+    }
+
+    public Result<String> hget(String key, String index) {
+        return add(pipeline -> pipeline.hget(key, index));
+    }
+
+    public Result<List<String>> hmget(String key, String... indices) {
+        return add(pipeline -> pipeline.hmget(key, indices));
+    }
+
+    public Result<Long> hset(String key, String index, String value) {
+        return add(pipeline -> pipeline.hset(key, index, value));
+    }
+
+    public Result<Long> hdel(String key, String index) {
+        return add(pipeline -> pipeline.hdel(key, index));
+    }
+
+    public Result<Map<String, String>> hgetAll(String key) {
+        return add(pipeline -> pipeline.hgetAll(key));
+    }
+
+    public Result<Long> publish(String key, String value) {
+        return add(pipeline -> pipeline.publish(key, value));
+    }
+
+    public Result<Long> lrem(String key, long count, String value) {
+        return add(pipeline -> pipeline.lrem(key, count, value));
+    }
+
+    public Result<Long> xack(String key, String group, StreamEntryID... ids) {
+        return add(pipeline -> pipeline.xack(key, group, ids));
+    }
+
+    public Result<Long> lpush(String key, String... strings) {
+        return add(pipeline -> pipeline.lpush(key, strings));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+/**
+ * Tuning options of an {@link AbstractRedisHandler}
+ */
+public class RedisHandlerOptions {
+    int parallelism = 1;
+    int queueCapacity = 1024;
+    int batchSize = 1;
+    boolean reliable = false;
+    String consumerId = null;
+    String groupName = "default";
+    long claimIdleTime = 60000L;
+    RedisMessageDispatcher.OverflowPolicy overflowPolicy = null;
+
+    /**
+     * Sets how many dispatch lanes the handler uses. Lanes share the dispatch pool of the
+     * {@link RedisManager} (redis-dispatch-threads), each running at most one message at a time.
+     * Messages with the same key (see {@link AbstractRedisHandler#getMessageKey(String)}) are always handled in order.
+     * @param parallelism Amount of dispatch lanes (0 to run the handler on the receiving thread)
+     * @return These options
+     */
+    public RedisHandlerOptions setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets how many received messages may wait in each dispatch lane
+     * @param queueCapacity Capacity of each dispatch queue
+     * @return These options
+     */
+    public RedisHandlerOptions setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets what happens to messages received while the dispatch queue is full. By default, popping
+     * LIST and STREAM handlers wait ({@link RedisMessageDispatcher.OverflowPolicy#BLOCK}), while
+     * pub/sub messages discard the oldest queued message, as waiting would stall every channel of the
+     * shared subscription connection. {@link AbstractRedisHandler#onMessagesDropped()} is called on every drop.
+     * @param overflowPolicy Overflow policy (null for the default)
+     * @return These options
+     */
+    public RedisHandlerOptions setOverflowPolicy(RedisMessageDispatcher.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Sets how many list elements are popped per round trip. After a blocking pop returns,
+     * up to batchSize - 1 more queued elements are popped at once and handed to
+     * {@link AbstractRedisHandler#onMessages(java.util.List)} together.
+     * @param batchSize Maximum amount of elements per batch
+     * @return These options
+     */
+    public RedisHandlerOptions setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Makes LIST handlers use a reliable queue. Popped messages are moved to a processing list
+     * of this consumer and only removed from it once handled without an exception. Messages
+     * still in there when the handler starts again (after a crash) are put back into the queue,
+     * so every message is handled at least once. Batches whose handler threw stay in the processing
+     * list as well and are not retried before that restart.
+     * Requires a consumer id, see {@link #setConsumerId(String)}.
+     * @param reliable Whether to use a reliable queue
+     * @return These options
+     */
+    public RedisHandlerOptions setReliable(boolean reliable) {
+        this.reliable = reliable;
+        return this;
+    }
+
+    /**
+     * Sets the id naming the processing list of a reliable queue, or the consumer within
+     * a stream's consumer group. Defaults to the redis-consumer-id configuration value;
+     * reliable queues fail to start without either, stream consumers fall back to a random id.
+     * @param consumerId Id of this consumer, stable across restarts
+     * @return These options
+     */
+    public RedisHandlerOptions setConsumerId(String consumerId) {
+        this.consumerId = consumerId;
+        return this;
+    }
+
+    /**
+     * Sets the consumer group of STREAM handlers. Every group receives each entry of the
+     * stream once, shared among the handlers in that group.
+     * @param groupName Name of the consumer group
+     * @return These options
+     */
+    public RedisHandlerOptions setGroupName(String groupName) {
+        this.groupName = groupName;
+        return this;
+    }
+
+    /**
+     * Sets how long a stream entry may stay unacknowledged before another consumer
+     * of the group claims and handles it again
+     * @param claimIdleTime Idle time in milliseconds
+     * @return These options
+     */
+    public RedisHandlerOptions setClaimIdleTime(long claimIdleTime) {
+        this.claimIdleTime = claimIdleTime;
+        return this;
+    }
+}
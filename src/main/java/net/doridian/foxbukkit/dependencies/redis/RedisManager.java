@@ -23,8 +23,31 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisPubSub;
-
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.args.ListDirection;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.params.XAutoClaimParams;
+import redis.clients.jedis.params.XReadGroupParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class RedisManager {
     private final ArrayList<Thread> threads = new ArrayList<>();
@@ -33,9 +56,33 @@ public class RedisManager {
 
     private final String REDIS_PASSWORD;
     private final int REDIS_DB;
+    private final int REDIS_PORT;
+
+    private final int ASYNC_THREADS;
+    private final int ASYNC_QUEUE_SIZE;
+    private final long ASYNC_TIMEOUT;
+    private final int ASYNC_MAX_ATTEMPTS;
+    private final int DISPATCH_THREADS;
+    private AsyncRedisManager asyncRedisManager;
+    private ThreadPoolExecutor dispatchExecutor;
+    private final ConcurrentHashMap<String, String> scriptHashes = new ConcurrentHashMap<>();
+    private CacheExpiryScheduler cacheExpiryScheduler;
+    private ClientTrackingInvalidator clientTrackingInvalidator;
+    private RedisPubSubHub pubSubHub;
 
     boolean running = true;
 
+    /**
+     * Random id of this node, used to tag messages it publishes
+     */
+    final String nodeId = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+
+    /**
+     * Id of this node's reliable queue consumers, from redis-consumer-id (null if not configured).
+     * Must stay the same across restarts for messages left in flight by a crash to be recovered.
+     */
+    final String consumerId;
+
     public void addThread(Thread t) {
         synchronized (threads) {
             if(jedisPool == null) {
@@ -47,19 +94,57 @@ public class RedisManager {
 
     final IThreadCreator threadCreator;
 
+    /**
+     * Creates the threads that spend their life blocked on Redis or a queue
+     * (handlers, dispatch pool, pub/sub, cache expiry). Virtual if redis-virtual-threads is set.
+     */
+    final IThreadCreator blockingThreadCreator;
+
     public static class PoolClosedException extends RuntimeException {
 
     }
 
+    /**
+     * Thrown when a call ran out of retries, or fails fast because Redis is known to be down
+     */
+    public static class RedisUnavailableException extends RuntimeException {
+        RedisUnavailableException(Throwable cause) {
+            super("Redis is unavailable", cause);
+        }
+    }
+
+    final RetryPolicy retryPolicy;
+
     public RedisManager(IThreadCreator _threadCreator, Configuration configuration) {
 		threadCreator = _threadCreator;
+        blockingThreadCreator = Boolean.parseBoolean(configuration.getValue("redis-virtual-threads", "false")) ?
+                new VirtualThreadCreator() : _threadCreator;
         REDIS_PASSWORD = configuration.getValue("redis-pw", "password");
         REDIS_DB = Integer.parseInt(configuration.getValue("redis-db", "1"));
+        REDIS_PORT = Integer.parseInt(configuration.getValue("redis-port", "6379"));
+        ASYNC_THREADS = Integer.parseInt(configuration.getValue("redis-async-threads", "4"));
+        ASYNC_QUEUE_SIZE = Integer.parseInt(configuration.getValue("redis-async-queue-size", "10000"));
+        ASYNC_TIMEOUT = Long.parseLong(configuration.getValue("redis-async-timeout", "5000"));
+        ASYNC_MAX_ATTEMPTS = Integer.parseInt(configuration.getValue("redis-async-attempts", "3"));
+        DISPATCH_THREADS = Integer.parseInt(configuration.getValue("redis-dispatch-threads", "4"));
+        consumerId = configuration.getValue("redis-consumer-id", null);
+        retryPolicy = new RetryPolicy(configuration);
         createPool(configuration.getValue("redis-host", "localhost"));
     }
 
     public void stop() {
         running = false;
+        synchronized (this) {
+            if(asyncRedisManager != null) {
+                asyncRedisManager.stop();
+            }
+            if(clientTrackingInvalidator != null) {
+                clientTrackingInvalidator.stop();
+            }
+            if(dispatchExecutor != null) {
+                dispatchExecutor.shutdownNow();
+            }
+        }
         final JedisPool _jedisPool = jedisPool;
         jedisPool = null;
         if(_jedisPool != null) {
@@ -98,7 +183,7 @@ public class RedisManager {
 				jedisPoolConfig.setTestOnReturn(true);
 				jedisPoolConfig.setTestWhileIdle(true);
                 jedisPoolConfig.setJmxEnabled(false);
-				jedisPool = new JedisPool(jedisPoolConfig, host, 6379, 1000, REDIS_PASSWORD, REDIS_DB);
+				jedisPool = new JedisPool(jedisPoolConfig, host, REDIS_PORT, 1000, REDIS_PASSWORD, REDIS_DB);
 			}
 		});
 		t.start();
@@ -107,368 +192,398 @@ public class RedisManager {
 		} catch (InterruptedException e) { }
     }
 
-    public long hlen(String key) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
+    /**
+     * Gets the asynchronous command interface, whose commands run on a
+     * bounded worker pool and never block the calling thread
+     * @return Asynchronous command interface of this manager
+     */
+    public synchronized AsyncRedisManager async() {
+        if(asyncRedisManager == null) {
+            asyncRedisManager = new AsyncRedisManager(this, ASYNC_THREADS, ASYNC_QUEUE_SIZE, ASYNC_TIMEOUT, ASYNC_MAX_ATTEMPTS);
+        }
+        return asyncRedisManager;
+    }
 
-                long ret;
-                if (!jedis.exists(key))
-                    ret = 0L;
-                else
-                    ret = jedis.hlen(key);
+    /**
+     * Gets the hub multiplexing all subscriptions of this manager over one connection
+     * @return Pub/sub hub of this manager
+     */
+    public synchronized RedisPubSubHub getPubSubHub() {
+        if(pubSubHub == null) {
+            pubSubHub = new RedisPubSubHub(this);
+        }
+        return pubSubHub;
+    }
 
-                jedisPool.returnResource(jedis);
+    /**
+     * Gets the pool running the handlers of all {@link AbstractRedisHandler}s of this manager.
+     * Its queue never holds more than one task per dispatch lane, so it is left unbounded.
+     */
+    synchronized ThreadPoolExecutor getDispatchExecutor() {
+        if(dispatchExecutor == null) {
+            final AtomicInteger threadId = new AtomicInteger();
+            dispatchExecutor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread t = blockingThreadCreator.createThread(runnable);
+                t.setName("RedisDispatchThread-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            dispatchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return dispatchExecutor;
+    }
 
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
+    synchronized CacheExpiryScheduler getCacheExpiryScheduler() {
+        if(cacheExpiryScheduler == null) {
+            cacheExpiryScheduler = new CacheExpiryScheduler(this);
         }
-        throw new PoolClosedException();
+        return cacheExpiryScheduler;
     }
 
-    public List<String> brpop(int timeout, String... key) {
-        Jedis jedis = null;
+    synchronized ClientTrackingInvalidator getClientTrackingInvalidator() {
+        if(clientTrackingInvalidator == null) {
+            clientTrackingInvalidator = new ClientTrackingInvalidator(this);
+        }
+        return clientTrackingInvalidator;
+    }
+
+    Jedis getResource() {
+        final JedisPool _jedisPool = jedisPool;
+        if(_jedisPool == null) {
+            throw new PoolClosedException();
+        }
+        return _jedisPool.getResource();
+    }
+
+    /**
+     * Runs a command on a pooled connection, retrying on a fresh connection according to the
+     * retry policy. Every command of this class goes through here; use it to run commands
+     * not wrapped by this class. Only connection failures are retried, exceptions thrown by the
+     * command itself are passed on as they are.
+     * @param command Command to run, may be run more than once
+     * @return Reply of the command
+     * @throws RedisUnavailableException If Redis could not be reached in time
+     */
+    public <T> T execute(Function<Jedis, T> command) {
+        final RetryPolicy.Attempt retry = retryPolicy.begin();
         while(running) {
             try {
-                jedis = jedisPool.getResource();
-                List<String> ret = jedis.brpop(timeout, key);
-                jedisPool.returnResource(jedis);
+                final T ret = attempt(command);
+                retry.succeeded();
                 return ret;
+            } catch (PoolClosedException e) {
+                throw e;
             } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+                retry.failed(e);
             }
         }
         throw new PoolClosedException();
     }
 
-    public long incrBy(String key, long amount) {
-        Jedis jedis = null;
-        while(running) {
+    /**
+     * Runs a command once on a pooled connection
+     */
+    <T> T attempt(Function<Jedis, T> command) {
+        try (Jedis jedis = getResource()) {
             try {
-                jedis = jedisPool.getResource();
-                long newValue = jedis.incrBy(key, amount);
-                jedisPool.returnResource(jedis);
-                return newValue;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+                return command.apply(jedis);
+            } catch (JedisConnectionException e) {
+                // Unread replies may be left on the connection, do not hand it out again.
+                // Other failures leave it usable; closing resets any pipeline left open.
+                jedis.getClient().setBroken();
+                throw e;
             }
         }
-        throw new PoolClosedException();
     }
 
-    public String get(String key) {
-        Jedis jedis = null;
-        while(running) {
+    public long hlen(String key) {
+        return execute(jedis -> jedis.hlen(key));
+    }
+
+    public List<String> brpop(int timeout, String... key) {
+        return execute(jedis -> jedis.brpop(timeout, key));
+    }
+
+    public List<String> rpop(String key, int count) {
+        return execute(jedis -> jedis.rpop(key, count));
+    }
+
+    public String blmove(String source, String destination, ListDirection from, ListDirection to, double timeout) {
+        return execute(jedis -> jedis.blmove(source, destination, from, to, timeout));
+    }
+
+    /**
+     * Adds a message to a stream consumed by {@link AbstractRedisHandler.RedisHandlerType#STREAM} handlers
+     * @param key Name of the stream
+     * @param message Message to add
+     * @param maxLength Approximate length to trim the stream to (0 to never trim)
+     * @return ID of the new entry
+     */
+    public StreamEntryID xadd(String key, String message, long maxLength) {
+        final XAddParams params = XAddParams.xAddParams();
+        if(maxLength > 0)
+            params.maxLen(maxLength).approximateTrimming();
+        final Map<String, String> fields = Collections.singletonMap(STREAM_MESSAGE_FIELD, message);
+        return execute(jedis -> jedis.xadd(key, params, fields));
+    }
+
+    /**
+     * Creates a consumer group reading new entries of a stream, creating the stream if needed.
+     * Does nothing if the group already exists.
+     */
+    public void xgroupCreate(String key, String group) {
+        execute(jedis -> {
             try {
-                jedis = jedisPool.getResource();
-                String ret = jedis.get(key);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+                return jedis.xgroupCreate(key, group, StreamEntryID.LAST_ENTRY, true);
+            } catch (JedisDataException e) {
+                if(e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP"))
+                    throw e;
+                return null;
             }
-        }
-        throw new PoolClosedException();
+        });
+    }
+
+    /**
+     * Reads entries of a stream never delivered to the group before
+     * @param block Milliseconds to wait for new entries
+     * @return Entries read, empty if none arrived in time
+     */
+    public List<StreamEntry> xreadGroup(String key, String group, String consumer, int count, int block) {
+        final XReadGroupParams params = XReadGroupParams.xReadGroupParams().count(count).block(block);
+        final Map<String, StreamEntryID> streams = Collections.singletonMap(key, StreamEntryID.UNRECEIVED_ENTRY);
+        final List<Map.Entry<String, List<StreamEntry>>> ret = execute(jedis -> jedis.xreadGroup(group, consumer, params, streams));
+        if(ret == null || ret.isEmpty())
+            return Collections.emptyList();
+        return ret.get(0).getValue();
+    }
+
+    /**
+     * Takes over entries of the group received but not acknowledged in time, by any consumer including this one
+     * @param minIdleTime Milliseconds an entry must have been pending to be claimed
+     * @param start Cursor to start at (0-0 initially)
+     * @return Cursor to continue at (0-0 once done) and the claimed entries
+     */
+    public Map.Entry<StreamEntryID, List<StreamEntry>> xautoclaim(String key, String group, String consumer, long minIdleTime, StreamEntryID start, int count) {
+        final XAutoClaimParams params = XAutoClaimParams.xAutoClaimParams().count(count);
+        return execute(jedis -> jedis.xautoclaim(key, group, consumer, minIdleTime, start, params));
+    }
+
+    /**
+     * Marks entries as handled, removing them from the pending entries of the group
+     * @return Amount of entries that were pending
+     */
+    public long xack(String key, String group, StreamEntryID... ids) {
+        return execute(jedis -> jedis.xack(key, group, ids));
+    }
+
+    public long incrBy(String key, long amount) {
+        return execute(jedis -> jedis.incrBy(key, amount));
+    }
+
+    public String get(String key) {
+        return execute(jedis -> jedis.get(key));
     }
 
     public String set(String key, String value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                String ret = jedis.set(key, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.set(key, value));
     }
 
     public String setex(String key, int expiry, String value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                String ret = jedis.setex(key, expiry, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.setex(key, expiry, value));
     }
 
     public long del(String key) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.del(key);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.del(key));
     }
 
     public List<String> lrange(String key, long start, long stop) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                List<String> range = jedis.lrange(key, start, stop);
-                jedisPool.returnResource(jedis);
-                return range;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.lrange(key, start, stop));
     }
 
     public List<String> zrange(String key, long start, long end) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                List<String> ret = jedis.zrange(key, start, end);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+        return execute(jedis -> jedis.zrange(key, start, end));
+    }
+
+    public long zcard(String key) {
+        return execute(jedis -> jedis.zcard(key));
+    }
+
+    /**
+     * Streams a range of a sorted set, fetching it in chunks as the stream is consumed
+     * @param key Key of the sorted set
+     * @param start Start index (inclusive, negative counts from the end)
+     * @param end End index (inclusive, negative counts from the end)
+     * @param chunkSize Amount of elements fetched per round trip
+     * @return Stream of the members in the range
+     */
+    public Stream<String> zrangeStream(String key, long start, long end, int chunkSize) {
+        return RedisScanIterator.stream(new ChunkedRangeIterator(key, start, end, chunkSize));
+    }
+
+    private class ChunkedRangeIterator implements Iterator<String> {
+        private final String key;
+        private final int chunkSize;
+        private long position;
+        private long end;
+        private boolean resolved = false;
+        private boolean finished = false;
+        private Iterator<String> chunk = Collections.emptyIterator();
+
+        private ChunkedRangeIterator(String key, long start, long end, int chunkSize) {
+            this.key = key;
+            this.position = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(!chunk.hasNext()) {
+                if(!resolved) {
+                    if(position < 0 || end < 0) {
+                        final long card = zcard(key);
+                        if(position < 0)
+                            position = Math.max(0L, card + position);
+                        if(end < 0)
+                            end = card + end;
+                    }
+                    resolved = true;
+                }
+                if(finished || position > end)
+                    return false;
+                final long chunkEnd = Math.min(position + chunkSize - 1, end);
+                final List<String> members = zrange(key, position, chunkEnd);
+                finished = members.size() < chunkEnd - position + 1;
+                position = chunkEnd + 1;
+                chunk = members.iterator();
             }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return chunk.next();
         }
-        throw new PoolClosedException();
     }
 
     public long zadd(String key, double score, String value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.zadd(key, score, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.zadd(key, score, value));
     }
 
     public long zrem(String key, String... value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.zrem(key, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.zrem(key, value));
     }
 
     public Set<String> smembers(String key) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                Set<String> range = jedis.smembers(key);
-                jedisPool.returnResource(jedis);
-                return range;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+        return execute(jedis -> jedis.smembers(key));
+    }
+
+    public ScanResult<String> sscan(String key, String cursor, int count) {
+        return execute(jedis -> jedis.sscan(key, cursor, new ScanParams().count(count)));
+    }
+
+    /**
+     * Streams the members of a set using SSCAN, fetching them page by page as the stream is consumed
+     * @param key Key of the set
+     * @param count COUNT hint per page
+     * @return Stream of the set members
+     */
+    public Stream<String> smembersStream(final String key, final int count) {
+        return RedisScanIterator.stream(new RedisScanIterator<String>() {
+            @Override
+            protected ScanResult<String> scan(String cursor) {
+                return sscan(key, cursor, count);
             }
-        }
-        throw new PoolClosedException();
+        });
     }
 
     public long sadd(String key, String... value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.sadd(key, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.sadd(key, value));
     }
 
     public long srem(String key, String... value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.srem(key, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.srem(key, value));
+    }
+
+    public boolean exists(String key) {
+        return execute(jedis -> jedis.exists(key));
     }
 
     public boolean hexists(String key, String index) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                boolean exists = jedis.hexists(key, index);
-                jedisPool.returnResource(jedis);
-                return exists;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hexists(key, index));
     }
 
     public String hget(String key, String index) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                String value = jedis.hget(key, index);
-                jedisPool.returnResource(jedis);
-                return value;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hget(key, index));
+    }
+
+    public List<String> hmget(String key, String... indices) {
+        return execute(jedis -> jedis.hmget(key, indices));
     }
 
     public long hset(String key, String index, String value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.hset(key, index, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hset(key, index, value));
+    }
+
+    public long hset(String key, Map<String, String> values) {
+        return execute(jedis -> jedis.hset(key, values));
     }
 
     public long hdel(String key, String index) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.hdel(key, index);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hdel(key, index));
     }
 
     public Set<String> hkeys(String key) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                Set<String> keys = jedis.hkeys(key);
-                jedisPool.returnResource(jedis);
-                return keys;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hkeys(key));
     }
 
     public List<String> hvals(String key) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                List<String> values = jedis.hvals(key);
-                jedisPool.returnResource(jedis);
-                return values;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.hvals(key));
+    }
+
+    public ScanResult<Map.Entry<String, String>> hscan(String key, String cursor, int count) {
+        return execute(jedis -> jedis.hscan(key, cursor, new ScanParams().count(count)));
     }
 
     public Map<String, String> hgetAll(String key) {
-        Jedis jedis = null;
-        while(running) {
+        return execute(jedis -> jedis.hgetAll(key));
+    }
+
+    private String getScriptHash(String script) {
+        return scriptHashes.computeIfAbsent(script, new Function<String, String>() {
+            @Override
+            public String apply(String s) {
+                try {
+                    final byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+                    final StringBuilder hash = new StringBuilder();
+                    for (byte b : digest)
+                        hash.append(String.format("%02x", b));
+                    return hash.toString();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a Lua script, only sending the script body if the server does not have it cached yet
+     * @param script Lua source of the script
+     * @param keys Keys accessed by the script (KEYS)
+     * @param args Arguments to the script (ARGV)
+     * @return Reply of the script
+     */
+    public Object eval(String script, List<String> keys, List<String> args) {
+        final String hash = getScriptHash(script);
+        return execute(jedis -> {
             try {
-                jedis = jedisPool.getResource();
-                Map<String, String> values = jedis.hgetAll(key);
-                jedisPool.returnResource(jedis);
-                return values;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
+                return jedis.evalsha(hash, keys, args);
+            } catch (JedisNoScriptException e) {
+                return jedis.eval(script, keys, args);
             }
-        }
-        throw new PoolClosedException();
+        });
     }
 
     public void subscribe(String key, JedisPubSub listener) throws Exception {
@@ -483,8 +598,12 @@ public class RedisManager {
             jedis = jedisPool.getResource();
             jedis.subscribe(listener, key);
         } finally {
-            if(jedis != null && jedisPool != null) {
-                jedisPool.returnBrokenResource(jedis);
+            if(jedis != null) {
+                // A subscribed connection can not be reused
+                jedis.getClient().setBroken();
+                try {
+                    jedis.close();
+                } catch (Exception e) { }
             }
             try {
                 listener.unsubscribe();
@@ -497,45 +616,106 @@ public class RedisManager {
     }
 
     public long publish(String key, String value) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.publish(key, value);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
+        return execute(jedis -> jedis.publish(key, value));
     }
 
     public long lpush(String key, String... strings) {
-        Jedis jedis = null;
-        while(running) {
-            try {
-                jedis = jedisPool.getResource();
-                long ret = jedis.lpush(key, strings);
-                jedisPool.returnResource(jedis);
-                return ret;
-            } catch (Exception e) {
-                e.printStackTrace();
-                if(jedis != null)
-                    jedisPool.returnBrokenResource(jedis);
-            }
-        }
-        throw new PoolClosedException();
-    }
+        return execute(jedis -> jedis.lpush(key, strings));
+    }
+
+    /**
+     * Sends all commands queued by the filler in a single pipelined round trip.
+     * The filler is only called once; on failure the recorded commands are re-sent.
+     * @param filler Callback queueing commands onto the batch
+     * @return The executed batch, whose results are now available
+     */
+    public RedisBatch pipeline(Consumer<RedisBatch> filler) {
+        final RedisBatch batch = new RedisBatch();
+        filler.accept(batch);
+        return execute(jedis -> {
+            batch.execute(jedis);
+            return batch;
+        });
+    }
+
+    private static final int DEFAULT_SCAN_COUNT = 100;
+
+    static final String STREAM_MESSAGE_FIELD = "message";
+
+    private static final String HASH_GET_SET_SCRIPT =
+            "local old = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) " +
+            "return old";
+    private static final String HASH_GET_DEL_SCRIPT =
+            "local old = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[1], ARGV[1]) " +
+            "return old";
+
+    // ARGV: channel, message, whether to return the old value of the first key, then S key value / D key per change
+    private static final String HASH_WRITE_PUBLISH_SCRIPT =
+            "local old = false " +
+            "if ARGV[3] == '1' then old = redis.call('HGET', KEYS[1], ARGV[5]) end " +
+            "local i = 4 " +
+            "while i <= #ARGV do " +
+            "if ARGV[i] == 'S' then " +
+            "redis.call('HSET', KEYS[1], ARGV[i + 1], ARGV[i + 2]) " +
+            "i = i + 3 " +
+            "else " +
+            "redis.call('HDEL', KEYS[1], ARGV[i + 1]) " +
+            "i = i + 2 " +
+            "end " +
+            "end " +
+            "redis.call('PUBLISH', ARGV[1], ARGV[2]) " +
+            "return old";
+    // ARGV: channel, message
+    private static final String HASH_CLEAR_PUBLISH_SCRIPT =
+            "redis.call('DEL', KEYS[1]) " +
+            "redis.call('PUBLISH', ARGV[1], ARGV[2])";
+
+    // One HSCAN page per call, so Redis is never blocked for the whole hash. ARGV: cursor, value, count
+    // Returns the next cursor ('0' once done or found) and whether the value was found
+    private static final String HASH_CONTAINS_VALUE_SCRIPT =
+            "local page = redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[3]) " +
+            "local fields = page[2] " +
+            "for i = 2, #fields, 2 do " +
+            "if fields[i] == ARGV[2] then return {'0', 1} end " +
+            "end " +
+            "return {page[1], 0}";
 
     public class RedisMap implements Map<String, String> {
         private final String name;
+        private int scanCount = DEFAULT_SCAN_COUNT;
         public RedisMap(String name) {
             this.name = name;
         }
 
+        /**
+         * Sets the COUNT hint used for each HSCAN page when iterating this map
+         * @param scanCount COUNT hint per page
+         * @return This map
+         */
+        public RedisMap setScanCount(int scanCount) {
+            this.scanCount = scanCount;
+            return this;
+        }
+
+        public Iterator<Entry<String, String>> entryIterator() {
+            return new RedisScanIterator<Entry<String, String>>() {
+                @Override
+                protected ScanResult<Entry<String, String>> scan(String cursor) {
+                    return hscan(name, cursor, scanCount);
+                }
+            };
+        }
+
+        /**
+         * Streams all entries using HSCAN, fetching them page by page as the stream is consumed
+         * @return Stream of all entries
+         */
+        public Stream<Entry<String, String>> stream() {
+            return RedisScanIterator.stream(entryIterator());
+        }
+
         @Override
         public int size() {
             return (int)hlen(name);
@@ -543,7 +723,8 @@ public class RedisManager {
 
         @Override
         public boolean isEmpty() {
-            return (size() <= 0);
+            // Empty hashes do not exist
+            return !exists(name);
         }
 
         @Override
@@ -551,9 +732,24 @@ public class RedisManager {
             return hexists(name, key.toString());
         }
 
+        /**
+         * Checks whether any key has the given value. Values are compared on the server, one
+         * HSCAN page (see {@link #setScanCount(int)}) per round trip, so small hashes take a
+         * single round trip while large ones take about size / scanCount, without ever
+         * blocking Redis for longer than one page.
+         */
         @Override
         public boolean containsValue(Object value) {
-            return values().contains(value.toString());
+            final List<String> keys = Collections.singletonList(name);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                final List<?> page = (List<?>)eval(HASH_CONTAINS_VALUE_SCRIPT, keys,
+                        Arrays.asList(cursor, value.toString(), Integer.toString(scanCount)));
+                if((Long)page.get(1) != 0L)
+                    return true;
+                cursor = (String)page.get(0);
+            } while(!ScanParams.SCAN_POINTER_START.equals(cursor));
+            return false;
         }
 
         @Override
@@ -561,54 +757,188 @@ public class RedisManager {
             return hget(name, key.toString());
         }
 
+        /**
+         * Gets multiple keys in a single round trip
+         * @param keys Keys to get
+         * @return Map of all requested keys which exist
+         */
+        public Map<String, String> getAll(Collection<String> keys) {
+            final Map<String, String> result = new HashMap<>();
+            if(keys.isEmpty())
+                return result;
+            final String[] fields = keys.toArray(new String[0]);
+            final List<String> values = hmget(name, fields);
+            for(int i = 0; i < fields.length; i++) {
+                final String value = values.get(i);
+                if(value != null)
+                    result.put(fields[i], value);
+            }
+            return result;
+        }
+
+        /**
+         * Fetches all entries in a single HGETALL
+         * @return Map of all entries
+         */
+        public Map<String, String> snapshot() {
+            final Map<String, String> entries = hgetAll(name);
+            if(entries == null)
+                return new HashMap<>();
+            return entries;
+        }
+
         @Override
         public Set<String> keySet() {
-            Set<String> keys = hkeys(name);
-            if(keys == null)
-                return new HashSet<>();
-            return keys;
+            return new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    final Iterator<Entry<String, String>> entries = entryIterator();
+                    return new Iterator<String>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public String next() {
+                            return entries.next().getKey();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return RedisMap.this.size();
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+            };
         }
 
         @Override
         public Collection<String> values() {
-            Collection<String> values = hvals(name);
-            if(values == null)
-                return Collections.emptyList();
-            return values;
+            return new AbstractCollection<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    final Iterator<Entry<String, String>> entries = entryIterator();
+                    return new Iterator<String>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public String next() {
+                            return entries.next().getValue();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return RedisMap.this.size();
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return o != null && containsValue(o);
+                }
+            };
         }
 
         @Override
         public Set<Entry<String, String>> entrySet() {
-            Map<String, String> entryMap = hgetAll(name);
-            if(entryMap == null)
-                return Collections.emptySet();
-            return entryMap.entrySet();
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return entryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return RedisMap.this.size();
+                }
+            };
         }
 
         @Override
         public String put(String key, String value) {
-            String old = get(key);
-            hset(name, key, value);
-            return old;
+            return (String)eval(HASH_GET_SET_SCRIPT, Collections.singletonList(name), Arrays.asList(key, value));
         }
 
         @Override
         public String remove(Object key) {
-            String old = get(key);
-            hdel(name, key.toString());
-            return old;
+            return (String)eval(HASH_GET_DEL_SCRIPT, Collections.singletonList(name), Collections.singletonList(key.toString()));
+        }
+
+        /**
+         * Sets a key without reading its previous value
+         * @param key Key to set
+         * @param value Value to set
+         * @return true if the key did not exist before
+         */
+        public boolean fastPut(String key, String value) {
+            return hset(name, key, value) > 0L;
+        }
+
+        /**
+         * Removes a key without reading its previous value
+         * @param key Key to remove
+         * @return true if the key existed
+         */
+        public boolean fastRemove(String key) {
+            return hdel(name, key) > 0L;
         }
 
         @Override
         public void putAll(Map<? extends String, ? extends String> m) {
-            for(Entry<? extends String, ? extends String> e : m.entrySet()) {
-                put(e.getKey(), e.getValue());
+            if(m.isEmpty())
+                return;
+            hset(name, new HashMap<String, String>(m));
+        }
+
+        /**
+         * Applies changes and publishes a message about them in one atomic step,
+         * so subscribers can never receive the message before the changes are visible
+         * @param changes Values to set, keys mapped to null are removed
+         * @param returnOld Whether to read the previous value of the first changed key
+         * @param channel Channel to publish to
+         * @param message Message to publish
+         * @return Previous value of the first changed key (null if not requested)
+         */
+        String writeAndPublish(Map<String, String> changes, boolean returnOld, String channel, String message) {
+            final List<String> args = new ArrayList<>(3 + 3 * changes.size());
+            args.add(channel);
+            args.add(message);
+            args.add(returnOld ? "1" : "0");
+            for(Entry<String, String> change : changes.entrySet()) {
+                if(change.getValue() == null) {
+                    args.add("D");
+                    args.add(change.getKey());
+                } else {
+                    args.add("S");
+                    args.add(change.getKey());
+                    args.add(change.getValue());
+                }
             }
+            return (String)eval(HASH_WRITE_PUBLISH_SCRIPT, Collections.singletonList(name), args);
+        }
+
+        /**
+         * Deletes the whole hash and publishes a message about it in one atomic step
+         * @param channel Channel to publish to
+         * @param message Message to publish
+         */
+        void clearAndPublish(String channel, String message) {
+            eval(HASH_CLEAR_PUBLISH_SCRIPT, Collections.singletonList(name), Arrays.asList(channel, message));
         }
 
         @Override
         public void clear() {
-            throw new RuntimeException();
+            del(name);
         }
     }
 
@@ -621,4 +951,26 @@ public class RedisManager {
     public CacheMap createCachedRedisMap(String name, long expiry) {
         return new CacheMap(this, expiry, name, new RedisMap(name));
     }
+    public CacheMap createReplicatedRedisMap(String name) {
+        return new CacheMap(this, name, new RedisMap(name));
+    }
+    /**
+     * Creates a cache which is additionally invalidated by Redis itself (CLIENT TRACKING, Redis 6+)
+     * whenever the hash is modified by anyone, so long expiry times stay coherent even with writers
+     * bypassing CacheMap. Any change to the hash drops the whole cache, so this suits read-mostly hashes.
+     * @param name Name of the hash
+     * @param expiry Expiry time of cached entries in milliseconds
+     * @return The cache
+     */
+    public CacheMap createTrackedRedisMap(String name, long expiry) {
+        final CacheMap cacheMap = createCachedRedisMap(name, expiry);
+        getClientTrackingInvalidator().track(name, cacheMap::invalidateAll);
+        return cacheMap;
+    }
+    public CacheMap createCachedRedisMap(String name, long expiry, int maxEntries) {
+        return createCachedRedisMap(name, expiry, maxEntries, 0L);
+    }
+    public CacheMap createCachedRedisMap(String name, long expiry, int maxEntries, long maxBytes) {
+        return new CacheMap(this, expiry, maxEntries, maxBytes, name, new RedisMap(name));
+    }
 }
\ No newline at end of file
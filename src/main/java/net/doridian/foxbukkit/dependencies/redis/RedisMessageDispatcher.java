@@ -0,0 +1,201 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples receiving messages from handling them. Every lane is a bounded queue drained by the
+ * dispatch pool shared by all handlers of a {@link RedisManager}; a lane is drained by at most one
+ * pool thread at a time, so tasks with the same key always go to the same lane and run in order.
+ */
+public class RedisMessageDispatcher {
+    public enum OverflowPolicy {
+        /**
+         * Wait for space in the queue, slowing down the receiving connection
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued message to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the message being received
+         */
+        DROP_NEWEST
+    }
+
+    // Tasks run per turn of a lane before it yields its pool thread to other lanes
+    private static final int DRAIN_LIMIT = 64;
+
+    private final RedisManager redisManager;
+    private final String name;
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Runnable onDropped;
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            for(int i = 0; i < DRAIN_LIMIT; i++) {
+                final Runnable task = queue.poll();
+                if(task == null)
+                    break;
+                runTask(task);
+            }
+            scheduled.set(false);
+            // Tasks queued after the last poll but before the flag was cleared would be stranded otherwise
+            if(!queue.isEmpty())
+                schedule();
+        }
+
+        private void schedule() {
+            if(!scheduled.compareAndSet(false, true))
+                return;
+            final Executor executor = redisManager.getDispatchExecutor();
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Only happens once the manager is stopping
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * @param redisManager Manager whose dispatch pool runs the tasks
+     * @param name Name used when logging dropped messages, usually the channel
+     * @param options Lane count and capacity
+     * @param onDropped Called on the dispatching thread after every drop
+     */
+    RedisMessageDispatcher(final RedisManager redisManager, final String name, final RedisHandlerOptions options, final Runnable onDropped) {
+        this.redisManager = redisManager;
+        this.name = name;
+        this.onDropped = onDropped;
+        for(int i = 0; i < options.parallelism; i++)
+            lanes.add(new Lane(options.queueCapacity));
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    int getLaneCount() {
+        return lanes.size();
+    }
+
+    int getLane(String key) {
+        if(lanes.isEmpty())
+            return 0;
+        if(key == null)
+            return Math.floorMod(nextLane.getAndIncrement(), lanes.size());
+        final int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.size());
+    }
+
+    /**
+     * Queues a task according to the overflow policy
+     * @param key Ordering key (null if the task may run in any order)
+     * @param task Task to run
+     * @param overflowPolicy What to do if the lane of the task is full
+     */
+    public void dispatch(String key, Runnable task, OverflowPolicy overflowPolicy) {
+        dispatchToLane(getLane(key), task, overflowPolicy);
+    }
+
+    void dispatchToLane(int laneIndex, Runnable task, OverflowPolicy overflowPolicy) {
+        dispatchedCount.incrementAndGet();
+        if(lanes.isEmpty()) {
+            runTask(task);
+            return;
+        }
+        final Lane lane = lanes.get(laneIndex);
+        boolean dropped = false;
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    while(!lane.queue.offer(task, 1L, TimeUnit.SECONDS)) {
+                        if(!redisManager.running) {
+                            dropped = true;
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    dropped = true;
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DROP_NEWEST:
+                dropped = !lane.queue.offer(task);
+                break;
+            case DROP_OLDEST:
+                while(!lane.queue.offer(task)) {
+                    if(lane.queue.poll() != null) {
+                        droppedCount.incrementAndGet();
+                        dropped = true;
+                    }
+                }
+                break;
+        }
+        if(dropped) {
+            final long total = overflowPolicy != OverflowPolicy.DROP_OLDEST ? droppedCount.incrementAndGet() : droppedCount.get();
+            // Rate-limited together with connection failures, a full queue tends to stay full for a while
+            redisManager.retryPolicy.report(new IllegalStateException("Dispatch queue of " + name + " is full, dropped a message (" + total + " so far)"));
+            runTask(onDropped);
+        }
+        lane.schedule();
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getQueuedCount() {
+        int queued = 0;
+        for(Lane lane : lanes)
+            queued += lane.queue.size();
+        return queued;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Multiplexes all channel and pattern subscriptions of a {@link RedisManager} over a single
+ * connection and thread, dispatching incoming messages to the registered listeners.
+ * Listeners only receive the callbacks for channels and patterns they registered for.
+ */
+public class RedisPubSubHub {
+    private static final String CONTROL_CHANNEL = "redisdependency:hub";
+
+    private final RedisManager redisManager;
+    private final Dispatcher dispatcher = new Dispatcher();
+
+    private final Map<String, List<JedisPubSub>> channels = new ConcurrentHashMap<>();
+    private final Map<String, List<JedisPubSub>> patterns = new ConcurrentHashMap<>();
+    // Channels Redis confirmed on the current connection
+    private final Set<String> confirmedChannels = ConcurrentHashMap.newKeySet();
+    private boolean connected = false;
+
+    private class Dispatcher extends AbstractJedisPubSub {
+        @Override
+        public void onMessage(String channel, String message) {
+            final List<JedisPubSub> listeners = channels.get(channel);
+            if(listeners == null)
+                return;
+            for(JedisPubSub listener : listeners) {
+                try {
+                    listener.onMessage(channel, message);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            final List<JedisPubSub> listeners = patterns.get(pattern);
+            if(listeners == null)
+                return;
+            for(JedisPubSub listener : listeners) {
+                try {
+                    listener.onPMessage(pattern, channel, message);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if(channel.equals(CONTROL_CHANNEL)) {
+                onConnected();
+                return;
+            }
+            confirmedChannels.add(channel);
+            final List<JedisPubSub> listeners = channels.get(channel);
+            if(listeners == null)
+                return;
+            for(JedisPubSub listener : listeners) {
+                try {
+                    listener.onSubscribe(channel, subscribedChannels);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+            confirmedChannels.remove(channel);
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+            final List<JedisPubSub> listeners = patterns.get(pattern);
+            if(listeners == null)
+                return;
+            for(JedisPubSub listener : listeners) {
+                try {
+                    listener.onPSubscribe(pattern, subscribedChannels);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    RedisPubSubHub(final RedisManager redisManager) {
+        this.redisManager = redisManager;
+
+        Thread t = redisManager.blockingThreadCreator.createThread(new Runnable() {
+            public void run() {
+                int failures = 0;
+                while (redisManager.running) {
+                    try {
+                        redisManager.subscribe(CONTROL_CHANNEL, dispatcher);
+                    } catch (RedisManager.PoolClosedException e) {
+                        return;
+                    } catch (Exception e) {
+                        if(redisManager.running)
+                            redisManager.retryPolicy.report(e);
+                    } finally {
+                        synchronized (RedisPubSubHub.this) {
+                            // Back off from scratch if this connection had been working
+                            if(connected)
+                                failures = 0;
+                            connected = false;
+                            confirmedChannels.clear();
+                        }
+                    }
+                    if(!redisManager.retryPolicy.pause(++failures))
+                        return;
+                }
+            }
+        });
+        t.setName("RedisPubSubHubThread");
+        t.setDaemon(true);
+        t.start();
+        redisManager.addThread(t);
+    }
+
+    /**
+     * Called once the hub connection is subscribed, (re-)subscribing everything registered so far
+     */
+    private synchronized void onConnected() {
+        connected = true;
+        if(!channels.isEmpty())
+            dispatcher.subscribe(channels.keySet().toArray(new String[0]));
+        if(!patterns.isEmpty())
+            dispatcher.psubscribe(patterns.keySet().toArray(new String[0]));
+    }
+
+    /**
+     * Adds a listener to a channel. Like on a dedicated connection, the listener's onSubscribe
+     * is called once messages of the channel are being received, even if the channel had
+     * already been subscribed for another listener.
+     */
+    public synchronized void subscribe(String channel, JedisPubSub listener) {
+        if(register(channels, channel, listener)) {
+            if(connected) {
+                try {
+                    dispatcher.subscribe(channel);
+                } catch (Exception e) {
+                    // Connection is going away, we will subscribe again once reconnected
+                    e.printStackTrace();
+                }
+            }
+        } else if(confirmedChannels.contains(channel)) {
+            // No confirmation is coming for a channel subscribed before
+            try {
+                listener.onSubscribe(channel, confirmedChannels.size());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void unsubscribe(String channel, JedisPubSub listener) {
+        if(unregister(channels, channel, listener) && connected) {
+            try {
+                dispatcher.unsubscribe(channel);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void psubscribe(String pattern, JedisPubSub listener) {
+        if(register(patterns, pattern, listener) && connected) {
+            try {
+                dispatcher.psubscribe(pattern);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void punsubscribe(String pattern, JedisPubSub listener) {
+        if(unregister(patterns, pattern, listener) && connected) {
+            try {
+                dispatcher.punsubscribe(pattern);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return true if this is the first listener of the channel
+     */
+    private static boolean register(Map<String, List<JedisPubSub>> map, String channel, JedisPubSub listener) {
+        final List<JedisPubSub> listeners = map.get(channel);
+        if(listeners != null) {
+            listeners.add(listener);
+            return false;
+        }
+        final List<JedisPubSub> newListeners = new CopyOnWriteArrayList<>();
+        newListeners.add(listener);
+        map.put(channel, newListeners);
+        return true;
+    }
+
+    /**
+     * @return true if this was the last listener of the channel
+     */
+    private static boolean unregister(Map<String, List<JedisPubSub>> map, String channel, JedisPubSub listener) {
+        final List<JedisPubSub> listeners = map.get(channel);
+        if(listeners == null || !listeners.remove(listener) || !listeners.isEmpty())
+            return false;
+        map.remove(channel);
+        return true;
+    }
+}
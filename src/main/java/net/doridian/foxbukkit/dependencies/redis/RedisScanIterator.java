@@ -0,0 +1,70 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks a SCAN-family cursor, fetching the next page only once the current one is used up.
+ * Like the underlying commands, elements changed during iteration may be missed or returned twice.
+ */
+abstract class RedisScanIterator<T> implements Iterator<T> {
+    private String cursor = ScanParams.SCAN_POINTER_START;
+    private boolean finished = false;
+    private Iterator<T> page = Collections.emptyIterator();
+
+    /**
+     * Fetches one page of results
+     * @param cursor Cursor returned by the previous page
+     * @return Scan result of the page
+     */
+    protected abstract ScanResult<T> scan(String cursor);
+
+    @Override
+    public boolean hasNext() {
+        while(!page.hasNext()) {
+            if(finished)
+                return false;
+            final ScanResult<T> result = scan(cursor);
+            cursor = result.getCursor();
+            finished = result.isCompleteIteration();
+            page = result.getResult().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        return page.next();
+    }
+
+    static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import net.doridian.foxbukkit.dependencies.config.Configuration;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how failed Redis calls are retried: exponential backoff with jitter between attempts,
+ * bounded by a maximum amount of attempts and a deadline per call. After enough consecutive
+ * failures the circuit opens and calls fail fast with a {@link RedisManager.RedisUnavailableException}
+ * until the open time has passed and a call gets through to Redis again.
+ */
+class RetryPolicy {
+    private static final long LOG_INTERVAL = 5000L;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+    private final long deadline;
+    private final int circuitFailureThreshold;
+    private final long circuitOpenTime;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long circuitOpenUntil = 0L;
+    private final AtomicLong lastLogged = new AtomicLong();
+
+    RetryPolicy(Configuration configuration) {
+        initialDelay = Long.parseLong(configuration.getValue("redis-retry-initial-delay", "50"));
+        maxDelay = Long.parseLong(configuration.getValue("redis-retry-max-delay", "5000"));
+        maxAttempts = Integer.parseInt(configuration.getValue("redis-retry-max-attempts", "10"));
+        deadline = Long.parseLong(configuration.getValue("redis-retry-deadline", "30000"));
+        circuitFailureThreshold = Integer.parseInt(configuration.getValue("redis-circuit-failure-threshold", "5"));
+        circuitOpenTime = Long.parseLong(configuration.getValue("redis-circuit-open-time", "5000"));
+    }
+
+    /**
+     * Tracks the attempts of a single call
+     */
+    class Attempt {
+        private final long started = System.currentTimeMillis();
+        private int attempts = 0;
+
+        void succeeded() {
+            consecutiveFailures.set(0);
+        }
+
+        /**
+         * Records a failed attempt and waits before the next one. Only connection and pool
+         * failures are retried and count towards the circuit; anything else is rethrown right away.
+         * @param e Reason the attempt failed
+         * @throws RuntimeException If the call should not be retried
+         */
+        void failed(Exception e) {
+            if(e instanceof JedisDataException) {
+                // Redis answered, retrying will not change its mind
+                consecutiveFailures.set(0);
+                throw (JedisDataException)e;
+            }
+            if(!isConnectionFailure(e)) {
+                // Bugs in the command itself say nothing about whether Redis is reachable
+                if(e instanceof RuntimeException)
+                    throw (RuntimeException)e;
+                throw new RuntimeException(e);
+            }
+            attempts++;
+            recordFailure();
+            report(e);
+            if(isCircuitOpen()
+                    || (maxAttempts > 0 && attempts >= maxAttempts)
+                    || (deadline > 0 && System.currentTimeMillis() - started >= deadline))
+                throw new RedisManager.RedisUnavailableException(e);
+            if(!pause(attempts))
+                throw new RedisManager.RedisUnavailableException(e);
+        }
+    }
+
+    /**
+     * Checks whether an exception means Redis could not be reached: a broken connection, or
+     * no connection to be had from the pool (Jedis wraps both in "Could not get a resource")
+     */
+    static boolean isConnectionFailure(Throwable e) {
+        if(e instanceof JedisDataException)
+            return false;
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof JedisConnectionException)
+                return true;
+            if(cause instanceof NoSuchElementException && e instanceof JedisException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a call
+     * @throws RedisManager.RedisUnavailableException If the circuit is open
+     */
+    Attempt begin() {
+        if(isCircuitOpen())
+            throw new RedisManager.RedisUnavailableException(null);
+        return new Attempt();
+    }
+
+    boolean isCircuitOpen() {
+        return System.currentTimeMillis() < circuitOpenUntil;
+    }
+
+    private void recordFailure() {
+        if(consecutiveFailures.incrementAndGet() >= circuitFailureThreshold && !isCircuitOpen())
+            circuitOpenUntil = System.currentTimeMillis() + circuitOpenTime;
+    }
+
+    /**
+     * Gets the delay before the given retry, doubling each time, with the upper half randomized
+     * so clients do not all reconnect at once
+     * @param failures Consecutive failures so far (at least 1)
+     * @return Delay in milliseconds
+     */
+    long getDelay(int failures) {
+        final long delay = Math.min(maxDelay, initialDelay << Math.min(failures - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Sleeps before the given retry
+     * @param failures Consecutive failures so far (at least 1)
+     * @return false if interrupted
+     */
+    boolean pause(int failures) {
+        try {
+            Thread.sleep(getDelay(failures));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Prints the failure unless another one was printed recently, so an outage does not flood the log
+     */
+    void report(Exception e) {
+        if(e instanceof RedisManager.RedisUnavailableException)
+            return;
+        final long now = System.currentTimeMillis();
+        final long last = lastLogged.get();
+        if(now - last >= LOG_INTERVAL && lastLogged.compareAndSet(last, now))
+            e.printStackTrace();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures CacheMap read hit throughput as reader threads are added. Hits never lock,
+ * so throughput should grow with the thread count up to the number of cores.
+ * Run with: mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+class CacheMapContentionBenchmarkTest {
+    private static final int KEYS = 10000;
+    private static final long WARMUP_MILLIS = 500L;
+    private static final long MEASURE_MILLIS = 2000L;
+
+    private FakeRedisServer server;
+    private RedisManager redisManager;
+    private CacheMap cacheMap;
+    private String[] keys;
+    private final AtomicLong loads = new AtomicLong();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeRedisServer();
+        redisManager = server.createRedisManager();
+        final Map<String, String> parentMap = new HashMap<String, String>() {
+            @Override
+            public String get(Object key) {
+                loads.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        keys = new String[KEYS];
+        for(int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            parentMap.put(keys[i], "value" + i);
+        }
+        cacheMap = new CacheMap(redisManager, 3600000L, "benchmark", parentMap);
+        for(String key : keys)
+            cacheMap.get(key);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        redisManager.stop();
+        server.close();
+    }
+
+    @Test
+    void hitThroughputScalesWithThreads() throws InterruptedException {
+        System.out.printf("CacheMap hits, %d cores%n", Runtime.getRuntime().availableProcessors());
+        loads.set(0L);
+        final double single = measure(1);
+        for(int threads = 1; threads <= 8; threads *= 2) {
+            final double opsPerSecond = threads == 1 ? single : measure(threads);
+            System.out.printf("%d thread(s): %,.0f hits/s (%.2fx)%n", threads, opsPerSecond, opsPerSecond / single);
+        }
+        // Every read was a hit, nothing was loaded from the parent map
+        assertEquals(0L, loads.get());
+    }
+
+    private double measure(final int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong hits = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        final long measureFrom = System.currentTimeMillis() + WARMUP_MILLIS;
+        final long measureUntil = measureFrom + MEASURE_MILLIS;
+        for(int t = 0; t < threadCount; t++) {
+            final int offset = t * (KEYS / threadCount);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    int i = offset;
+                    long now;
+                    while((now = System.currentTimeMillis()) < measureUntil) {
+                        for(int j = 0; j < 1000; j++) {
+                            cacheMap.get(keys[i]);
+                            if(++i == KEYS)
+                                i = 0;
+                        }
+                        if(now >= measureFrom)
+                            count += 1000;
+                    }
+                    hits.addAndGet(count);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+        return hits.get() * 1000D / MEASURE_MILLIS;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how changes travel between {@link CacheMap}s sharing a hash on a {@link FakeRedisServer}
+ */
+class CacheMapTest {
+    private static final long TIMEOUT = 5000L;
+
+    private FakeRedisServer server;
+    private RedisManager managerA;
+    private RedisManager managerB;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeRedisServer();
+        managerA = server.createRedisManager();
+        managerB = server.createRedisManager();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        managerA.stop();
+        managerB.stop();
+        server.close();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * Waits until changes made through one cache reach the other, i.e. both are subscribed
+     */
+    private static void awaitDelivery(CacheMap from, CacheMap to) throws InterruptedException {
+        final AtomicBoolean delivered = new AtomicBoolean();
+        final CacheMap.OnChangeHook hook = (key, value) -> {
+            if(key.equals("ready"))
+                delivered.set(true);
+        };
+        to.addOnChangeHook(hook);
+        final AtomicInteger attempt = new AtomicInteger();
+        await(() -> {
+            from.fastPut("ready", Integer.toString(attempt.incrementAndGet()));
+            return delivered.get();
+        });
+        to.removeOnChangeHook(hook);
+    }
+
+    @Test
+    void clearReachesOtherNodes() throws InterruptedException {
+        final CacheMap a = managerA.createCachedRedisMap("clear");
+        final CacheMap b = managerB.createCachedRedisMap("clear");
+        awaitDelivery(a, b);
+        a.put("k", "1");
+        assertEquals("1", b.get("k"));
+
+        a.clear();
+        assertTrue(managerA.new RedisMap("clear").isEmpty());
+        await(() -> b.get("k") == null);
+    }
+
+    @Test
+    void invalidatedKeysAreReloaded() throws InterruptedException {
+        final CacheMap a = managerA.createCachedRedisMap("invalidate").setInvalidateThreshold(0);
+        final CacheMap b = managerB.createCachedRedisMap("invalidate");
+        awaitDelivery(a, b);
+        a.put("k", "1");
+        assertEquals("1", b.get("k"));
+
+        a.put("k", "2");
+        await(() -> "2".equals(b.get("k")));
+    }
+
+    @Test
+    void cachesInOneProcessSeeEachOthersChanges() throws InterruptedException {
+        final CacheMap a = managerA.createCachedRedisMap("shared");
+        final CacheMap b = managerA.createCachedRedisMap("shared");
+        awaitDelivery(a, b);
+        a.put("k", "1");
+        assertEquals("1", b.get("k"));
+
+        a.put("k", "2");
+        await(() -> "2".equals(b.get("k")));
+    }
+
+    @Test
+    void replicasInOneProcessSeeEachOthersChanges() throws InterruptedException {
+        final CacheMap a = new CacheMap(managerA, "replicated", managerA.new RedisMap("replicated"));
+        final CacheMap b = new CacheMap(managerA, "replicated", managerA.new RedisMap("replicated"));
+        a.put("k", "1");
+        await(() -> "1".equals(b.get("k")));
+        b.remove("k");
+        await(() -> a.get("k") == null);
+    }
+}
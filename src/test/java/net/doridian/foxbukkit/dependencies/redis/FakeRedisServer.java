@@ -0,0 +1,452 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import net.doridian.foxbukkit.dependencies.config.Configuration;
+import net.doridian.foxbukkit.dependencies.threading.IThreadCreator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * In-memory stand-in for a Redis server, speaking just enough RESP2 for the commands
+ * RedisManager sends. Scripts are not interpreted but recognized by their content.
+ * Counts every command except connection setup and health checks (AUTH, SELECT, CLIENT, PING),
+ * i.e. one per round trip an API call costs.
+ */
+class FakeRedisServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final Map<String, Map<String, String>> hashes = new ConcurrentHashMap<>();
+    private final Map<String, String> scripts = new ConcurrentHashMap<>();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger commandCount = new AtomicInteger();
+
+    FakeRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!serverSocket.isClosed()) {
+                    try {
+                        final Client client = new Client(serverSocket.accept());
+                        clients.add(client);
+                        client.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        t.setName("FakeRedisServer-accept");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getCommandCount() {
+        return commandCount.get();
+    }
+
+    void resetCommandCount() {
+        commandCount.set(0);
+    }
+
+    /**
+     * Creates a manager connected to this server, with every other setting at its default
+     */
+    RedisManager createRedisManager() {
+        final Configuration configuration = mock(Configuration.class);
+        when(configuration.getValue(anyString(), any())).thenAnswer(invocation ->
+                "redis-port".equals(invocation.getArgument(0)) ? Integer.toString(getPort()) : invocation.getArgument(1));
+        final IThreadCreator threadCreator = mock(IThreadCreator.class);
+        when(threadCreator.createThread(any())).thenAnswer(invocation -> new Thread((Runnable)invocation.getArgument(0)));
+        return new RedisManager(threadCreator, configuration);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for(Client client : clients)
+            client.close();
+    }
+
+    private class Client extends Thread {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Set<String> channels = ConcurrentHashMap.newKeySet();
+        private final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            setName("FakeRedisServer-client");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    final List<String> command = readCommand();
+                    final String name = command.get(0).toUpperCase();
+                    switch (name) {
+                        case "AUTH":
+                        case "SELECT":
+                        case "CLIENT":
+                        case "PING":
+                            break;
+                        default:
+                            commandCount.incrementAndGet();
+                    }
+                    // Commands run one at a time, like on a real server
+                    synchronized (FakeRedisServer.this) {
+                        execute(name, command.subList(1, command.size()));
+                    }
+                    synchronized (out) {
+                        reply.writeTo(out);
+                        out.flush();
+                    }
+                    reply.reset();
+                }
+            } catch (IOException e) {
+                // Connection closed
+            } finally {
+                clients.remove(this);
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) { }
+        }
+
+        private void execute(String name, List<String> args) {
+            switch (name) {
+                case "AUTH":
+                case "SELECT":
+                case "CLIENT":
+                    writeSimple("OK");
+                    break;
+                case "PING":
+                    writeSimple("PONG");
+                    break;
+                case "EXISTS":
+                    int exists = 0;
+                    for(String key : args)
+                        if(hashes.containsKey(key))
+                            exists++;
+                    writeInteger(exists);
+                    break;
+                case "DEL":
+                    int deleted = 0;
+                    for(String key : args)
+                        if(hashes.remove(key) != null)
+                            deleted++;
+                    writeInteger(deleted);
+                    break;
+                case "HLEN":
+                    writeInteger(hash(args.get(0)).size());
+                    break;
+                case "HEXISTS":
+                    writeInteger(hash(args.get(0)).containsKey(args.get(1)) ? 1 : 0);
+                    break;
+                case "HGET":
+                    write(hash(args.get(0)).get(args.get(1)));
+                    break;
+                case "HMGET":
+                    final List<Object> values = new ArrayList<>();
+                    for(String field : args.subList(1, args.size()))
+                        values.add(hash(args.get(0)).get(field));
+                    write(values);
+                    break;
+                case "HGETALL":
+                    final List<Object> entries = new ArrayList<>();
+                    for(Map.Entry<String, String> entry : hash(args.get(0)).entrySet()) {
+                        entries.add(entry.getKey());
+                        entries.add(entry.getValue());
+                    }
+                    write(entries);
+                    break;
+                case "HSET":
+                    int added = 0;
+                    for(int i = 1; i + 1 < args.size(); i += 2)
+                        if(hset(args.get(0), args.get(i), args.get(i + 1)) == null)
+                            added++;
+                    writeInteger(added);
+                    break;
+                case "HDEL":
+                    int removed = 0;
+                    for(String field : args.subList(1, args.size()))
+                        if(hdel(args.get(0), field) != null)
+                            removed++;
+                    writeInteger(removed);
+                    break;
+                case "HSCAN":
+                    write(hscan(args.get(0), args.get(1), args.size() > 3 ? Integer.parseInt(args.get(3)) : 10));
+                    break;
+                case "EVAL":
+                    final String script = args.get(0);
+                    scripts.put(sha1(script), script);
+                    eval(script, args);
+                    break;
+                case "EVALSHA":
+                    final String known = scripts.get(args.get(0));
+                    if(known == null)
+                        writeError("NOSCRIPT No matching script. Please use EVAL.");
+                    else
+                        eval(known, args);
+                    break;
+                case "PUBLISH":
+                    writeInteger(publish(args.get(0), args.get(1)));
+                    break;
+                case "SUBSCRIBE":
+                    for(String channel : args) {
+                        channels.add(channel);
+                        write(Arrays.asList("subscribe", channel, (long)channels.size()));
+                    }
+                    break;
+                case "UNSUBSCRIBE":
+                    final List<String> leaving = args.isEmpty() ? new ArrayList<>(channels) : args;
+                    if(leaving.isEmpty())
+                        write(Arrays.asList("unsubscribe", null, 0L));
+                    for(String channel : leaving) {
+                        channels.remove(channel);
+                        write(Arrays.asList("unsubscribe", channel, (long)channels.size()));
+                    }
+                    break;
+                default:
+                    writeError("ERR unknown command '" + name + "'");
+            }
+        }
+
+        /**
+         * Replays the effect of the scripts RedisManager runs, recognized by the commands they call
+         */
+        private void eval(String script, List<String> args) {
+            final int keyCount = Integer.parseInt(args.get(1));
+            final List<String> keys = args.subList(2, 2 + keyCount);
+            final List<String> argv = args.subList(2 + keyCount, args.size());
+            if(script.contains("'HSCAN'")) {
+                final List<?> page = hscan(keys.get(0), argv.get(0), Integer.parseInt(argv.get(2)));
+                final List<?> fields = (List<?>)page.get(1);
+                for(int i = 1; i < fields.size(); i += 2) {
+                    if(fields.get(i).equals(argv.get(1))) {
+                        write(Arrays.asList("0", 1L));
+                        return;
+                    }
+                }
+                write(Arrays.asList(page.get(0), 0L));
+            } else if(script.contains("'DEL'")) {
+                hashes.remove(keys.get(0));
+                publish(argv.get(0), argv.get(1));
+                write(null);
+            } else if(script.contains("'PUBLISH'")) {
+                final String old = argv.get(2).equals("1") ? hash(keys.get(0)).get(argv.get(4)) : null;
+                for(int i = 3; i < argv.size(); ) {
+                    if(argv.get(i).equals("S")) {
+                        hset(keys.get(0), argv.get(i + 1), argv.get(i + 2));
+                        i += 3;
+                    } else {
+                        hdel(keys.get(0), argv.get(i + 1));
+                        i += 2;
+                    }
+                }
+                publish(argv.get(0), argv.get(1));
+                write(old);
+            } else if(script.contains("'HSET'")) {
+                write(hset(keys.get(0), argv.get(0), argv.get(1)));
+            } else if(script.contains("'HDEL'")) {
+                write(hdel(keys.get(0), argv.get(0)));
+            } else {
+                writeError("ERR script not supported by FakeRedisServer");
+            }
+        }
+
+        private List<String> readCommand() throws IOException {
+            final String header = readLine();
+            if(!header.startsWith("*"))
+                throw new IOException("Expected an array, got " + header);
+            final int count = Integer.parseInt(header.substring(1));
+            final List<String> command = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                final String length = readLine();
+                final byte[] data = new byte[Integer.parseInt(length.substring(1))];
+                int read = 0;
+                while(read < data.length) {
+                    final int n = in.read(data, read, data.length - read);
+                    if(n < 0)
+                        throw new EOFException();
+                    read += n;
+                }
+                readLine();
+                command.add(new String(data, StandardCharsets.UTF_8));
+            }
+            return command;
+        }
+
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while((b = in.read()) != '\r') {
+                if(b < 0)
+                    throw new EOFException();
+                line.write(b);
+            }
+            in.read();
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        private void writeSimple(String value) {
+            reply.writeBytes(("+" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeError(String message) {
+            reply.writeBytes(("-" + message + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeInteger(long value) {
+            reply.writeBytes((":" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void write(Object value) {
+            encode(reply, value);
+        }
+
+        private void deliver(String channel, String message) {
+            final ByteArrayOutputStream push = new ByteArrayOutputStream();
+            encode(push, Arrays.asList("message", channel, message));
+            synchronized (out) {
+                try {
+                    push.writeTo(out);
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+    }
+
+    private static void encode(ByteArrayOutputStream target, Object value) {
+        if(value == null) {
+            target.writeBytes("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+        } else if(value instanceof Long) {
+            target.writeBytes((":" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if(value instanceof List) {
+            final List<?> list = (List<?>)value;
+            target.writeBytes(("*" + list.size() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            for(Object element : list)
+                encode(target, element);
+        } else {
+            final byte[] data = value.toString().getBytes(StandardCharsets.UTF_8);
+            target.writeBytes(("$" + data.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+            target.writeBytes(data);
+            target.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private Map<String, String> hash(String key) {
+        final Map<String, String> hash = hashes.get(key);
+        return hash != null ? hash : new LinkedHashMap<>();
+    }
+
+    private String hset(String key, String field, String value) {
+        return hashes.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(field, value);
+    }
+
+    private String hdel(String key, String field) {
+        final Map<String, String> hash = hashes.get(key);
+        if(hash == null)
+            return null;
+        final String old = hash.remove(field);
+        // Redis deletes hashes once their last field is gone
+        if(hash.isEmpty())
+            hashes.remove(key);
+        return old;
+    }
+
+    /**
+     * Pages through a hash in insertion order, the cursor being the index of the next field
+     */
+    private List<Object> hscan(String key, String cursor, int count) {
+        final List<Map.Entry<String, String>> entries = new ArrayList<>(hash(key).entrySet());
+        final int start = Integer.parseInt(cursor);
+        final int end = Math.min(entries.size(), start + count);
+        final List<Object> fields = new ArrayList<>();
+        for(Map.Entry<String, String> entry : entries.subList(start, end)) {
+            fields.add(entry.getKey());
+            fields.add(entry.getValue());
+        }
+        return Arrays.asList(end >= entries.size() ? "0" : Integer.toString(end), fields);
+    }
+
+    private long publish(String channel, String message) {
+        long receivers = 0;
+        for(Client client : clients) {
+            if(client.channels.contains(channel)) {
+                client.deliver(channel, message);
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    private static String sha1(String script) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hash = new StringBuilder();
+            for (byte b : digest)
+                hash.append(String.format("%02x", b));
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * redis-dependency - ${project.description}
+ * Copyright © ${year} Doridian (git@doridian.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.doridian.foxbukkit.dependencies.redis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counts the round trips each {@link RedisManager.RedisMap} call costs against a {@link FakeRedisServer}
+ */
+class RedisMapRoundTripTest {
+    private FakeRedisServer server;
+    private RedisManager redisManager;
+    private RedisManager.RedisMap map;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeRedisServer();
+        redisManager = server.createRedisManager();
+        map = redisManager.new RedisMap("roundtrip");
+        map.fastPut("a", "1");
+        map.fastPut("b", "2");
+        // Scripts are sent in full once per server; only count what every later call costs
+        map.containsValue("1");
+        map.put("c", "3");
+        map.remove("c");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        redisManager.stop();
+        server.close();
+    }
+
+    private <T> T assertRoundTrips(int expected, Supplier<T> call) {
+        server.resetCommandCount();
+        final T ret = call.get();
+        assertEquals(expected, server.getCommandCount());
+        return ret;
+    }
+
+    @Test
+    void sizeTakesOneRoundTrip() {
+        assertEquals(2, (int)assertRoundTrips(1, map::size));
+    }
+
+    @Test
+    void isEmptyTakesOneRoundTrip() {
+        assertFalse(assertRoundTrips(1, map::isEmpty));
+        assertTrue(assertRoundTrips(1, redisManager.new RedisMap("missing")::isEmpty));
+    }
+
+    @Test
+    void containsKeyTakesOneRoundTrip() {
+        assertTrue(assertRoundTrips(1, () -> map.containsKey("a")));
+        assertFalse(assertRoundTrips(1, () -> map.containsKey("c")));
+    }
+
+    @Test
+    void getTakesOneRoundTrip() {
+        assertEquals("2", assertRoundTrips(1, () -> map.get("b")));
+        assertNull(assertRoundTrips(1, () -> map.get("c")));
+    }
+
+    @Test
+    void containsValueTakesOneRoundTripPerPage() {
+        assertTrue(assertRoundTrips(1, () -> map.containsValue("2")));
+        assertFalse(assertRoundTrips(1, () -> map.containsValue("3")));
+
+        final Map<String, String> values = new HashMap<>();
+        for(int i = 0; i < 25; i++)
+            values.put("key" + i, "value" + i);
+        map.putAll(values);
+        map.setScanCount(10);
+        assertFalse(assertRoundTrips(3, () -> map.containsValue("none")));
+    }
+
+    @Test
+    void writesTakeOneRoundTrip() {
+        assertNull(assertRoundTrips(1, () -> map.put("c", "3")));
+        assertEquals("3", assertRoundTrips(1, () -> map.put("c", "4")));
+        assertEquals("4", assertRoundTrips(1, () -> map.remove("c")));
+        assertTrue(assertRoundTrips(1, () -> map.fastPut("d", "5")));
+        assertTrue(assertRoundTrips(1, () -> map.fastRemove("d")));
+    }
+
+    @Test
+    void clearTakesOneRoundTrip() {
+        assertRoundTrips(1, () -> {
+            map.clear();
+            return null;
+        });
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void bulkReadsTakeOneRoundTrip() {
+        final Map<String, String> expected = new HashMap<>();
+        expected.put("a", "1");
+        expected.put("b", "2");
+        assertEquals(expected, assertRoundTrips(1, map::snapshot));
+        assertEquals(expected, assertRoundTrips(1, () -> map.getAll(Arrays.asList("a", "b", "c"))));
+    }
+}